@@ -0,0 +1,152 @@
+/*
+ * Copyright (C) 2020 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lineageos.platform.internal;
+
+import android.os.SystemClock;
+import android.util.LruCache;
+import lineageos.weather.WeatherLocation;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Bounded cache of city name lookup results, keyed by normalized query. If the provider declared
+ * that it only matches prefixes of the city name, a query that misses can still be answered from
+ * the results of a cached shorter query it extends, as long as those results were few enough not
+ * to have been truncated by the provider. Other providers may match on more than that, so their
+ * results are never derived from other queries.
+ * @hide
+ */
+class CityLookupCache {
+
+    private static final int MAX_ENTRIES = 32;
+    private static final long TTL_MS = 60 * 60 * 1000;
+    // Result lists at least this long may have been cut short by the provider, and can't be
+    // narrowed down to answer longer queries
+    private static final int MAX_NARROWABLE_RESULTS = 10;
+
+    private static class Entry {
+        final List<WeatherLocation> locations;
+        final long timestamp;
+
+        Entry(List<WeatherLocation> locations, long timestamp) {
+            this.locations = locations;
+            this.timestamp = timestamp;
+        }
+    }
+
+    private final LruCache<String, Entry> mCache = new LruCache<>(MAX_ENTRIES);
+
+    private boolean mPrefixMatching;
+
+    private int mHits;
+    private int mPrefixHits;
+    private int mMisses;
+
+    static String normalize(String query) {
+        if (query == null) {
+            return null;
+        }
+        return query.trim().replaceAll("\\s+", " ").toLowerCase(Locale.ROOT);
+    }
+
+    synchronized List<WeatherLocation> get(String query) {
+        final String key = normalize(query);
+        if (key == null || key.isEmpty()) {
+            return null;
+        }
+        final Entry entry = getEntry(key);
+        if (entry != null) {
+            mHits++;
+            return entry.locations;
+        }
+        if (mPrefixMatching) {
+            final List<WeatherLocation> narrowed = narrow(key);
+            if (narrowed != null) {
+                mPrefixHits++;
+                return narrowed;
+            }
+        }
+        mMisses++;
+        return null;
+    }
+
+    /**
+     * Answer the query from the results of a cached shorter query, walking the shorter
+     * prefixes longest first
+     */
+    private List<WeatherLocation> narrow(String key) {
+        for (int length = key.length() - 1; length > 0; length--) {
+            final Entry prefixEntry = getEntry(key.substring(0, length));
+            if (prefixEntry == null) {
+                continue;
+            }
+            if (prefixEntry.locations.size() >= MAX_NARROWABLE_RESULTS) {
+                return null;
+            }
+            final ArrayList<WeatherLocation> narrowed = new ArrayList<>();
+            for (WeatherLocation location : prefixEntry.locations) {
+                final String city = normalize(location.getCity());
+                if (city != null && city.startsWith(key)) {
+                    narrowed.add(location);
+                }
+            }
+            mCache.put(key, new Entry(narrowed, prefixEntry.timestamp));
+            return narrowed;
+        }
+        return null;
+    }
+
+    /**
+     * Set whether the provider only matches prefixes of the city name, which allows longer
+     * queries to be answered from the results of shorter ones
+     */
+    synchronized void setPrefixMatching(boolean prefixMatching) {
+        mPrefixMatching = prefixMatching;
+    }
+
+    synchronized void put(String query, List<WeatherLocation> locations) {
+        final String key = normalize(query);
+        if (key == null || key.isEmpty() || locations == null) {
+            return;
+        }
+        mCache.put(key, new Entry(new ArrayList<>(locations), SystemClock.elapsedRealtime()));
+    }
+
+    synchronized void clear() {
+        mCache.evictAll();
+    }
+
+    private Entry getEntry(String key) {
+        final Entry entry = mCache.get(key);
+        if (entry != null && SystemClock.elapsedRealtime() - entry.timestamp > TTL_MS) {
+            mCache.remove(key);
+            return null;
+        }
+        return entry;
+    }
+
+    synchronized void dump(PrintWriter pw) {
+        pw.println(" City lookup cache:");
+        pw.println("  Entries: " + mCache.size() + "/" + mCache.maxSize());
+        pw.println("  Prefix matching: " + mPrefixMatching);
+        pw.println("  Hits: " + mHits + " (" + mPrefixHits + " from a shorter query)");
+        pw.println("  Misses: " + mMisses);
+    }
+}
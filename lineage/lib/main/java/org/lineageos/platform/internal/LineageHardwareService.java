@@ -18,6 +18,7 @@ package org.lineageos.platform.internal;
 
 import android.content.Context;
 import android.content.Intent;
+import android.opengl.Matrix;
 import android.os.IBinder;
 import android.os.UserHandle;
 import android.util.Log;
@@ -29,8 +30,9 @@ import lineageos.app.LineageContextConstants;
 import lineageos.hardware.ILineageHardwareService;
 import lineageos.hardware.LineageHardwareManager;
 
+import java.util.Arrays;
+
 import static com.android.server.display.color.DisplayTransformManager.LEVEL_COLOR_MATRIX_NIGHT_DISPLAY;
-import static com.android.server.display.color.DisplayTransformManager.LEVEL_COLOR_MATRIX_GRAYSCALE;
 
 /** @hide */
 public class LineageHardwareService extends LineageSystemService {
@@ -74,8 +76,11 @@ public class LineageHardwareService extends LineageSystemService {
             0, 0, 0, 1
         };
 
+        /**
+         * Calibration and reading enhancement are composed into a single matrix
+         * at this level, so a change to either is one transform update.
+         */
         private final int LEVEL_COLOR_MATRIX_CALIB = LEVEL_COLOR_MATRIX_NIGHT_DISPLAY + 1;
-        private final int LEVEL_COLOR_MATRIX_READING = LEVEL_COLOR_MATRIX_GRAYSCALE + 1;
 
         private boolean mAcceleratedTransform;
         private DisplayTransformManager mDTMService;
@@ -83,6 +88,9 @@ public class LineageHardwareService extends LineageSystemService {
         private int[] mCurColors = { MAX, MAX, MAX };
         private boolean mReadingEnhancementEnabled;
 
+        // Last matrix handed to DisplayTransformManager, which keeps a reference to it
+        private float[] mAppliedMatrix = MATRIX_NORMAL;
+
         private int mSupportedFeatures = 0;
 
         public LegacyLineageHardware() {
@@ -99,7 +107,7 @@ public class LineageHardwareService extends LineageSystemService {
             return mSupportedFeatures;
         }
 
-        public boolean get(int feature) {
+        public synchronized boolean get(int feature) {
             switch(feature) {
                 case LineageHardwareManager.FEATURE_READING_ENHANCEMENT:
                     if (mAcceleratedTransform)
@@ -110,13 +118,12 @@ public class LineageHardwareService extends LineageSystemService {
             }
         }
 
-        public boolean set(int feature, boolean enable) {
+        public synchronized boolean set(int feature, boolean enable) {
             switch(feature) {
                 case LineageHardwareManager.FEATURE_READING_ENHANCEMENT:
                     if (mAcceleratedTransform) {
                         mReadingEnhancementEnabled = enable;
-                        mDTMService.setColorMatrix(LEVEL_COLOR_MATRIX_READING,
-                                enable ? MATRIX_GRAYSCALE : MATRIX_NORMAL);
+                        applyColorTransform();
                         return true;
                     }
                 default:
@@ -142,7 +149,23 @@ public class LineageHardwareService extends LineageSystemService {
             return mat;
         }
 
-        public int[] getDisplayColorCalibration() {
+        /**
+         * Compose the calibration and reading enhancement matrices, in the order
+         * DisplayTransformManager applied them as separate levels, and push the
+         * result only if it differs from what is already applied.
+         */
+        private void applyColorTransform() {
+            final float[] matrix = new float[16];
+            Matrix.multiplyMM(matrix, 0, rgbToMatrix(mCurColors), 0,
+                    mReadingEnhancementEnabled ? MATRIX_GRAYSCALE : MATRIX_NORMAL, 0);
+            if (Arrays.equals(matrix, mAppliedMatrix)) {
+                return;
+            }
+            mAppliedMatrix = matrix;
+            mDTMService.setColorMatrix(LEVEL_COLOR_MATRIX_CALIB, matrix);
+        }
+
+        public synchronized int[] getDisplayColorCalibration() {
             int[] rgb = mAcceleratedTransform ? mCurColors : null;
             if (rgb == null || rgb.length != 3) {
                 Log.e(TAG, "Invalid color calibration string");
@@ -157,10 +180,11 @@ public class LineageHardwareService extends LineageSystemService {
             return currentCalibration;
         }
 
-        public boolean setDisplayColorCalibration(int[] rgb) {
+        public synchronized boolean setDisplayColorCalibration(int[] rgb) {
             if (mAcceleratedTransform) {
-                mCurColors = rgb;
-                mDTMService.setColorMatrix(LEVEL_COLOR_MATRIX_CALIB, rgbToMatrix(rgb));
+                // The caller may reuse its array for the next frame
+                mCurColors = Arrays.copyOf(rgb, 3);
+                applyColorTransform();
                 return true;
             }
             return false;
@@ -16,6 +16,8 @@
 
 package org.lineageos.platform.internal;
 
+import android.app.ActivityManager;
+import android.app.AlarmManager;
 import android.app.AppGlobals;
 import android.content.ComponentName;
 import android.content.ContentValues;
@@ -26,16 +28,27 @@ import android.content.pm.IPackageManager;
 import android.content.pm.PackageManager;
 import android.content.pm.ResolveInfo;
 import android.database.ContentObserver;
+import android.net.ConnectivityManager;
 import android.net.Uri;
+import android.os.BatteryManager;
 import android.os.Binder;
+import android.os.Handler;
 import android.os.IBinder;
+import android.os.PowerManager;
+import android.os.Process;
 import android.os.RemoteCallbackList;
 import android.os.RemoteException;
+import android.os.SystemClock;
 import android.os.UserHandle;
 import android.text.TextUtils;
+import android.util.ArrayMap;
+import android.util.KeyValueListParser;
 import android.util.Slog;
+import android.util.SparseArray;
+import android.util.SparseIntArray;
 import com.android.internal.content.PackageMonitor;
 import com.android.internal.os.BackgroundThread;
+import com.android.server.ServiceThread;
 import lineageos.app.LineageContextConstants;
 import lineageos.platform.Manifest;
 import lineageos.providers.LineageSettings;
@@ -46,24 +59,115 @@ import lineageos.weather.IRequestInfoListener;
 import lineageos.weather.IWeatherServiceProviderChangeListener;
 import lineageos.weather.RequestInfo;
 import lineageos.weather.WeatherInfo;
+import lineageos.weather.WeatherLocation;
 import lineageos.weatherservice.IWeatherProviderService;
 import lineageos.weatherservice.IWeatherProviderServiceClient;
 import lineageos.weatherservice.ServiceRequestResult;
 
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 
 public class LineageWeatherManagerService extends LineageSystemService {
 
     private static final String TAG = LineageWeatherManagerService.class.getSimpleName();
 
+    // Keys of LineageSettings.Global.WEATHER_REQUEST_LIMITS
+    private static final String KEY_REQUEST_BURST = "burst";
+    private static final String KEY_REQUEST_REFILL_INTERVAL = "refill_interval";
+    private static final String KEY_REQUEST_QUEUE_SIZE = "queue_size";
+
     private IWeatherProviderService mWeatherProviderService;
     private boolean mIsWeatherProviderServiceBound;
+    // Set by the provider once connected, older providers don't know about batches
+    private volatile boolean mProviderSupportsBatch;
     private Object mMutex = new Object();
     private Context mContext;
     private final RemoteCallbackList<IWeatherServiceProviderChangeListener> mProviderChangeListeners
             = new RemoteCallbackList<>();
     private volatile boolean mReconnectedDuePkgModified = false;
+    private WeatherCache mWeatherCache;
+    private final CityLookupCache mCityLookupCache = new CityLookupCache();
+    // Rows last written to the weather content provider, guarded by mMutex
+    private ContentValues[] mLastWrittenWeatherRows;
+    private int mSkippedWeatherWrites;
+
+    // Weather requests forwarded to the provider, keyed by WeatherCache key. Identical
+    // requests submitted while one is pending wait for its result instead.
+    private final ArrayMap<String, PendingWeatherRequest> mPendingWeatherRequests
+            = new ArrayMap<>();
+    // Pending weather requests by the request id of each of their waiters
+    private final SparseArray<PendingWeatherRequest> mPendingWeatherRequestIds
+            = new SparseArray<>();
+    private int mCoalescedRequests;
+    // Time the provider has to answer a forwarded request before it is failed
+    private final int mRequestTimeout;
+    private int mExpiredRequests;
+
+    // Weather requests waiting to be dispatched to the provider, see mDispatchHandler
+    private WeatherRequestScheduler<PendingWeatherRequest> mRequestScheduler;
+    private final int mDefaultRequestBurst;
+    private final int mDefaultRequestRefillInterval;
+    private final int mDefaultRequestQueueSize;
+    private ActivityManager mActivityManager;
+    private Handler mDispatchHandler;
+    // Importance of the UIDs which made weather requests, kept current by
+    // mUidImportanceListener so requests don't have to ask the activity manager
+    private final SparseIntArray mUidImportance = new SparseIntArray();
+
+    // Background refresh of recently requested locations, guarded by mMutex
+    private WeatherPrefetcher mPrefetcher;
+    private boolean mPrefetchAlarmSet;
+    // Listener of the prefetch requests. Nobody waits for them, their results only refresh
+    // mWeatherCache through mServiceClient.
+    private final IRequestInfoListener mPrefetchListener = new IRequestInfoListener.Stub() {
+        @Override
+        public void onWeatherRequestCompleted(RequestInfo requestInfo, int status,
+                WeatherInfo weatherInfo) {
+        }
+
+        @Override
+        public void onLookupCityRequestCompleted(RequestInfo requestInfo, int status,
+                List<WeatherLocation> weatherLocations) {
+        }
+    };
+    private AlarmManager mAlarmManager;
+    private BatteryManager mBatteryManager;
+    private ConnectivityManager mConnectivityManager;
+    private PowerManager mPowerManager;
+
+    private static class PendingWeatherRequest {
+        final String key;
+        // The request forwarded to the provider
+        final RequestInfo providerRequest;
+        // Still waiting in mRequestScheduler, not yet sent to the provider
+        boolean queued = true;
+        // Uptime after which the provider's answer is no longer waited for, -1 while queued
+        long deadline = -1;
+        // Every request waiting for the result, including the forwarded one unless cancelled
+        final ArrayList<RequestInfo> waiters = new ArrayList<>();
+
+        PendingWeatherRequest(String key, RequestInfo providerRequest) {
+            this.key = key;
+            this.providerRequest = providerRequest;
+        }
+
+        boolean isExpired(long now) {
+            return deadline >= 0 && now >= deadline;
+        }
+
+        boolean updatesContentProvider() {
+            for (RequestInfo waiter : waiters) {
+                if (!waiter.isQueryOnlyWeatherRequest()) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
 
     private final IWeatherProviderServiceClient mServiceClient
             = new IWeatherProviderServiceClient.Stub() {
@@ -88,6 +192,9 @@ public class LineageWeatherManagerService extends LineageSystemService {
                 switch (requestType) {
                     case RequestInfo.TYPE_WEATHER_BY_GEO_LOCATION_REQ:
                     case RequestInfo.TYPE_WEATHER_BY_WEATHER_LOCATION_REQ:
+                        final PendingWeatherRequest pending =
+                                removePendingWeatherRequestLocked(requestInfo);
+                        mPrefetcher.noteFetched(WeatherCache.getKey(requestInfo));
                         WeatherInfo weatherInfo = null;
                         if (status == LineageWeatherManager.RequestStatus.COMPLETED) {
                             weatherInfo = (result != null) ? result.getWeatherInfo() : null;
@@ -97,7 +204,9 @@ public class LineageWeatherManagerService extends LineageSystemService {
                                 //was marked as completed
                                 status = LineageWeatherManager.RequestStatus.FAILED;
                             } else {
-                                if (!requestInfo.isQueryOnlyWeatherRequest()) {
+                                mWeatherCache.put(requestInfo, weatherInfo);
+                                if (pending != null ? pending.updatesContentProvider()
+                                        : !requestInfo.isQueryOnlyWeatherRequest()) {
                                     final long identity = Binder.clearCallingIdentity();
                                     try {
                                         updateWeatherInfoLocked(weatherInfo);
@@ -107,20 +216,25 @@ public class LineageWeatherManagerService extends LineageSystemService {
                                 }
                             }
                         }
-                        if (isValidListener(listener)) {
-                            try {
-                                listener.onWeatherRequestCompleted(requestInfo, status,
-                                        weatherInfo);
-                            } catch (RemoteException e) {
+                        if (pending != null) {
+                            for (RequestInfo waiter : pending.waiters) {
+                                notifyWeatherRequestCompleted(waiter, status, weatherInfo);
                             }
+                        } else {
+                            notifyWeatherRequestCompleted(requestInfo, status, weatherInfo);
                         }
                         break;
                     case RequestInfo.TYPE_LOOKUP_CITY_NAME_REQ:
+                        final List<WeatherLocation> locations =
+                                result != null ? result.getLocationLookupList() : null;
+                        if (status == LineageWeatherManager.RequestStatus.COMPLETED) {
+                            mCityLookupCache.put(requestInfo.getCityName(), locations);
+                        }
                         if (isValidListener(listener)) {
                             try {
                                 //Result might be null if the provider marked the request as failed
                                 listener.onLookupCityRequestCompleted(requestInfo, status,
-                                        result != null ? result.getLocationLookupList() : null);
+                                        locations);
                             } catch (RemoteException e) {
                             }
                         }
@@ -128,8 +242,123 @@ public class LineageWeatherManagerService extends LineageSystemService {
                 }
             }
         }
+
+        @Override
+        public void setBatchRequestsSupported(boolean supported) {
+            mProviderSupportsBatch = supported;
+        }
+
+        @Override
+        public void setCityLookupPrefixMatching(boolean prefixMatching) {
+            mCityLookupCache.setPrefixMatching(prefixMatching);
+        }
+    };
+
+    private PendingWeatherRequest removePendingWeatherRequestLocked(RequestInfo requestInfo) {
+        final String key = WeatherCache.getKey(requestInfo);
+        final PendingWeatherRequest pending = mPendingWeatherRequests.get(key);
+        if (pending == null || !pending.providerRequest.equals(requestInfo)) {
+            return null;
+        }
+        mPendingWeatherRequests.remove(key);
+        for (RequestInfo waiter : pending.waiters) {
+            mPendingWeatherRequestIds.remove(waiter.hashCode());
+        }
+        return pending;
+    }
+
+    private void failPendingWeatherRequests() {
+        synchronized (mMutex) {
+            mRequestScheduler.clear();
+            for (int i = 0; i < mPendingWeatherRequests.size(); i++) {
+                for (RequestInfo waiter : mPendingWeatherRequests.valueAt(i).waiters) {
+                    notifyWeatherRequestCompleted(waiter,
+                            LineageWeatherManager.RequestStatus.FAILED, null);
+                }
+            }
+            mPendingWeatherRequests.clear();
+            mPendingWeatherRequestIds.clear();
+        }
+    }
+
+    private void dropPendingWeatherRequestLocked(PendingWeatherRequest pending, int status) {
+        mPendingWeatherRequests.remove(pending.key);
+        for (RequestInfo waiter : pending.waiters) {
+            mPendingWeatherRequestIds.remove(waiter.hashCode());
+            notifyWeatherRequestCompleted(waiter, status, null);
+        }
+    }
+
+    /**
+     * Fail the forwarded requests the provider didn't answer in time, adding them to
+     * {@code expired} so they can be cancelled at the provider without holding mMutex
+     */
+    private void expirePendingWeatherRequestsLocked(long now, List<RequestInfo> expired) {
+        for (int i = mPendingWeatherRequests.size() - 1; i >= 0; i--) {
+            final PendingWeatherRequest pending = mPendingWeatherRequests.valueAt(i);
+            if (pending.isExpired(now)) {
+                expirePendingWeatherRequestLocked(pending, expired);
+            }
+        }
+    }
+
+    private void expirePendingWeatherRequestLocked(PendingWeatherRequest pending,
+            List<RequestInfo> expired) {
+        dropPendingWeatherRequestLocked(pending, LineageWeatherManager.RequestStatus.FAILED);
+        expired.add(pending.providerRequest);
+        mExpiredRequests++;
+    }
+
+    private void scheduleExpiryLocked() {
+        long next = -1;
+        for (int i = 0; i < mPendingWeatherRequests.size(); i++) {
+            final long deadline = mPendingWeatherRequests.valueAt(i).deadline;
+            if (deadline >= 0 && (next == -1 || deadline < next)) {
+                next = deadline;
+            }
+        }
+        mDispatchHandler.removeCallbacks(mExpirePendingWeatherRequests);
+        if (next != -1) {
+            mDispatchHandler.postAtTime(mExpirePendingWeatherRequests, next);
+        }
+    }
+
+    private final Runnable mExpirePendingWeatherRequests = new Runnable() {
+        @Override
+        public void run() {
+            final ArrayList<RequestInfo> expired = new ArrayList<>();
+            synchronized (mMutex) {
+                expirePendingWeatherRequestsLocked(SystemClock.uptimeMillis(), expired);
+                scheduleExpiryLocked();
+            }
+            cancelProviderRequests(expired);
+        }
     };
 
+    private void cancelProviderRequests(List<RequestInfo> requests) {
+        final IWeatherProviderService provider = mWeatherProviderService;
+        if (provider == null) {
+            return;
+        }
+        for (RequestInfo request : requests) {
+            try {
+                provider.cancelRequest(request.hashCode());
+            } catch (RemoteException e) {
+            }
+        }
+    }
+
+    private void notifyWeatherRequestCompleted(RequestInfo requestInfo, int status,
+            WeatherInfo weatherInfo) {
+        final IRequestInfoListener listener = requestInfo.getRequestListener();
+        if (isValidListener(listener)) {
+            try {
+                listener.onWeatherRequestCompleted(requestInfo, status, weatherInfo);
+            } catch (RemoteException e) {
+            }
+        }
+    }
+
     private boolean isValidRequestInfoStatus(int state) {
         switch (state) {
             case LineageWeatherManager.RequestStatus.COMPLETED:
@@ -157,7 +386,15 @@ public class LineageWeatherManagerService extends LineageSystemService {
         @Override
         public void updateWeather(RequestInfo info) {
             enforcePermission();
-            processWeatherUpdateRequest(info);
+            processWeatherUpdateRequest(info, Binder.getCallingUid());
+        }
+
+        @Override
+        public void updateWeatherBatch(List<RequestInfo> infos) {
+            enforcePermission();
+            if (infos != null) {
+                processWeatherUpdateRequests(infos, Binder.getCallingUid());
+            }
         }
 
         @Override
@@ -202,6 +439,32 @@ public class LineageWeatherManagerService extends LineageSystemService {
             enforcePermission();
             processCancelRequest(requestId);
         }
+
+        @Override
+        public void dump(FileDescriptor fd, PrintWriter pw, String[] args) {
+            mContext.enforceCallingOrSelfPermission(android.Manifest.permission.DUMP, TAG);
+
+            pw.println();
+            pw.println("LineageWeatherManager Service State:");
+            pw.println();
+            pw.println(" Provider bound: " + mIsWeatherProviderServiceBound);
+            synchronized (mMutex) {
+                pw.println(" Pending weather requests: " + mPendingWeatherRequests.size()
+                        + " (" + mPendingWeatherRequestIds.size() + " waiters)");
+                pw.println(" Coalesced weather requests: " + mCoalescedRequests);
+                pw.println(" Expired weather requests: " + mExpiredRequests
+                        + " (timeout " + mRequestTimeout + "ms)");
+                pw.println(" Unchanged weather writes skipped: " + mSkippedWeatherWrites);
+                pw.println();
+                mRequestScheduler.dump(pw);
+                pw.println();
+                mPrefetcher.dump(pw);
+            }
+            pw.println();
+            mWeatherCache.dump(pw);
+            pw.println();
+            mCityLookupCache.dump(pw);
+        }
     };
 
     private String getComponentLabel(ComponentName componentName) {
@@ -218,6 +481,24 @@ public class LineageWeatherManagerService extends LineageSystemService {
     public LineageWeatherManagerService(Context context) {
         super(context);
         mContext = context;
+        mWeatherCache = new WeatherCache(
+                context.getResources().getInteger(
+                        org.lineageos.platform.internal.R.integer.config_weatherCacheMaxEntries),
+                context.getResources().getInteger(
+                        org.lineageos.platform.internal.R.integer.config_weatherCacheTtl));
+        mDefaultRequestBurst = context.getResources().getInteger(
+                org.lineageos.platform.internal.R.integer.config_weatherRequestBurst);
+        mDefaultRequestRefillInterval = context.getResources().getInteger(
+                org.lineageos.platform.internal.R.integer.config_weatherRequestRefillInterval);
+        mDefaultRequestQueueSize = context.getResources().getInteger(
+                org.lineageos.platform.internal.R.integer.config_weatherRequestQueueSize);
+        mRequestTimeout = context.getResources().getInteger(
+                org.lineageos.platform.internal.R.integer.config_weatherRequestTimeout);
+        mRequestScheduler = new WeatherRequestScheduler<>(mDefaultRequestBurst,
+                mDefaultRequestRefillInterval, mDefaultRequestQueueSize);
+        mPrefetcher = new WeatherPrefetcher(context.getResources().getInteger(
+                org.lineageos.platform.internal.R.integer.config_weatherPrefetchInterval),
+                mPrefetchListener);
     }
 
     @Override
@@ -227,6 +508,17 @@ public class LineageWeatherManagerService extends LineageSystemService {
 
     @Override
     public void onStart() {
+        mActivityManager = mContext.getSystemService(ActivityManager.class);
+        mAlarmManager = mContext.getSystemService(AlarmManager.class);
+        mBatteryManager = mContext.getSystemService(BatteryManager.class);
+        mConnectivityManager = mContext.getSystemService(ConnectivityManager.class);
+        mPowerManager = mContext.getSystemService(PowerManager.class);
+        mActivityManager.addOnUidImportanceListener(mUidImportanceListener,
+                ActivityManager.RunningAppProcessInfo.IMPORTANCE_VISIBLE);
+        ServiceThread dispatchThread = new ServiceThread(TAG,
+                Process.THREAD_PRIORITY_BACKGROUND, false /*allowIo*/);
+        dispatchThread.start();
+        mDispatchHandler = new Handler(dispatchThread.getLooper());
         publishBinderService(LineageContextConstants.LINEAGE_WEATHER_SERVICE, mService);
         registerPackageMonitor();
         registerSettingsObserver();
@@ -272,15 +564,243 @@ public class LineageWeatherManagerService extends LineageSystemService {
         return true;
     }
 
-    private synchronized void processWeatherUpdateRequest(RequestInfo info) {
-        if (!canProcessWeatherUpdateRequest(info)) return;
+    private void processWeatherUpdateRequest(RequestInfo info, int callingUid) {
+        processWeatherUpdateRequests(Collections.singletonList(info), callingUid);
+    }
+
+    private void processWeatherUpdateRequests(List<RequestInfo> infos, int callingUid) {
+        final int priority = getRequestPriority(callingUid);
+        boolean dispatch = false;
+        final ArrayList<RequestInfo> expired = new ArrayList<>();
+        synchronized (mMutex) {
+            final long now = SystemClock.uptimeMillis();
+            for (RequestInfo info : infos) {
+                if (info == null) continue;
+                final String key = WeatherCache.getKey(info);
+                mPrefetcher.noteRequest(key, info);
+
+                final WeatherInfo cachedWeatherInfo = mWeatherCache.get(info);
+                if (cachedWeatherInfo != null) {
+                    completeWeatherRequestFromCache(info, cachedWeatherInfo);
+                    continue;
+                }
+                if (!canProcessWeatherUpdateRequest(info)) continue;
+                PendingWeatherRequest pending = mPendingWeatherRequests.get(key);
+                if (pending != null && pending.isExpired(now)) {
+                    // The provider never answered, don't make this one wait for it too
+                    expirePendingWeatherRequestLocked(pending, expired);
+                    pending = null;
+                }
+                if (pending != null) {
+                    // An identical request is already being processed, share its result
+                    pending.waiters.add(info);
+                    mPendingWeatherRequestIds.put(info.hashCode(), pending);
+                    mCoalescedRequests++;
+                    continue;
+                }
+                // Every request that goes to the provider costs a token, batched or not
+                if (!mRequestScheduler.tryAcquire(callingUid)) {
+                    notifyWeatherRequestCompleted(info,
+                            LineageWeatherManager.RequestStatus.RATE_LIMITED, null);
+                    continue;
+                }
+                pending = new PendingWeatherRequest(key, info);
+                pending.waiters.add(info);
+                final PendingWeatherRequest dropped = mRequestScheduler.offer(pending, priority);
+                if (dropped == pending) {
+                    notifyWeatherRequestCompleted(info,
+                            LineageWeatherManager.RequestStatus.QUEUE_FULL, null);
+                    continue;
+                } else if (dropped != null) {
+                    dropPendingWeatherRequestLocked(dropped,
+                            LineageWeatherManager.RequestStatus.QUEUE_FULL);
+                }
+                mPendingWeatherRequests.put(key, pending);
+                mPendingWeatherRequestIds.put(info.hashCode(), pending);
+                dispatch = true;
+            }
+            schedulePrefetchLocked();
+        }
+        cancelProviderRequests(expired);
+        if (dispatch) {
+            mDispatchHandler.post(mDispatchWeatherRequests);
+        }
+    }
+
+    private int getRequestPriority(int uid) {
+        if (UserHandle.getAppId(uid) == Process.SYSTEM_UID) {
+            return WeatherRequestScheduler.PRIORITY_FOREGROUND;
+        }
+        return getUidImportance(uid) <= ActivityManager.RunningAppProcessInfo.IMPORTANCE_VISIBLE
+                ? WeatherRequestScheduler.PRIORITY_FOREGROUND
+                : WeatherRequestScheduler.PRIORITY_BACKGROUND;
+    }
+
+    private int getUidImportance(int uid) {
+        synchronized (mUidImportance) {
+            final int index = mUidImportance.indexOfKey(uid);
+            if (index >= 0) {
+                return mUidImportance.valueAt(index);
+            }
+        }
+        // First request of this UID, later changes come from mUidImportanceListener
+        final int importance;
+        final long identity = Binder.clearCallingIdentity();
+        try {
+            importance = mActivityManager.getUidImportance(uid);
+        } finally {
+            Binder.restoreCallingIdentity(identity);
+        }
+        synchronized (mUidImportance) {
+            if (importance != ActivityManager.RunningAppProcessInfo.IMPORTANCE_GONE
+                    && mUidImportance.indexOfKey(uid) < 0) {
+                mUidImportance.put(uid, importance);
+            }
+        }
+        return importance;
+    }
+
+    private final ActivityManager.OnUidImportanceListener mUidImportanceListener =
+            new ActivityManager.OnUidImportanceListener() {
+        @Override
+        public void onUidImportance(int uid, int importance) {
+            synchronized (mUidImportance) {
+                if (importance == ActivityManager.RunningAppProcessInfo.IMPORTANCE_GONE) {
+                    mUidImportance.delete(uid);
+                } else if (mUidImportance.indexOfKey(uid) >= 0) {
+                    // Only track the UIDs which made requests
+                    mUidImportance.put(uid, importance);
+                }
+            }
+        }
+    };
+
+    private final Runnable mDispatchWeatherRequests = new Runnable() {
+        @Override
+        public void run() {
+            // Drain the queue, so requests queued together reach the provider in one batch
+            final ArrayList<RequestInfo> requests = new ArrayList<>();
+            final IWeatherProviderService provider;
+            synchronized (mMutex) {
+                provider = mWeatherProviderService;
+                final long deadline = SystemClock.uptimeMillis() + mRequestTimeout;
+                PendingWeatherRequest pending;
+                while ((pending = mRequestScheduler.poll()) != null) {
+                    pending.queued = false;
+                    if (provider == null) {
+                        dropPendingWeatherRequestLocked(pending,
+                                LineageWeatherManager.RequestStatus.FAILED);
+                    } else {
+                        pending.deadline = deadline;
+                        requests.add(pending.providerRequest);
+                    }
+                }
+                if (!requests.isEmpty()) {
+                    scheduleExpiryLocked();
+                }
+            }
+            if (requests.isEmpty()) {
+                return;
+            }
+            try {
+                if (requests.size() > 1 && mProviderSupportsBatch) {
+                    provider.processWeatherUpdateRequests(requests);
+                } else {
+                    for (RequestInfo request : requests) {
+                        provider.processWeatherUpdateRequest(request);
+                    }
+                }
+            } catch (RemoteException e) {
+            }
+        }
+    };
+
+    private void schedulePrefetchLocked() {
+        if (mPrefetchAlarmSet || !mPrefetcher.isEnabled() || !mPrefetcher.hasLocations()) {
+            return;
+        }
+        // Inexact and non-wakeup: the alarm is batched with others and only goes off once
+        // something else has woken the device up
+        final long identity = Binder.clearCallingIdentity();
         try {
-            mWeatherProviderService.processWeatherUpdateRequest(info);
-        } catch (RemoteException e) {
+            mAlarmManager.set(AlarmManager.ELAPSED_REALTIME,
+                    SystemClock.elapsedRealtime() + mPrefetcher.getInterval(), TAG,
+                    mPrefetchAlarmListener, mDispatchHandler);
+            mPrefetchAlarmSet = true;
+        } finally {
+            Binder.restoreCallingIdentity(identity);
+        }
+    }
+
+    private final AlarmManager.OnAlarmListener mPrefetchAlarmListener =
+            new AlarmManager.OnAlarmListener() {
+        @Override
+        public void onAlarm() {
+            prefetchWeather();
+        }
+    };
+
+    private boolean isPrefetchAllowed() {
+        return mPowerManager.isInteractive() || mBatteryManager.isCharging()
+                || !mConnectivityManager.isActiveNetworkMetered();
+    }
+
+    private void prefetchWeather() {
+        final boolean allowed = isPrefetchAllowed();
+        synchronized (mMutex) {
+            mPrefetchAlarmSet = false;
+            if (!allowed || !mIsWeatherProviderServiceBound) {
+                mPrefetcher.noteSkippedRound();
+            } else {
+                for (RequestInfo info : mPrefetcher.getDueRequests()) {
+                    final String key = WeatherCache.getKey(info);
+                    if (mPendingWeatherRequests.containsKey(key)) {
+                        continue;
+                    }
+                    // Nobody waits for the result, it only refreshes the cache. Prefetches are
+                    // the newest background entries, so they never evict client requests.
+                    final PendingWeatherRequest pending = new PendingWeatherRequest(key, info);
+                    if (mRequestScheduler.offer(pending,
+                            WeatherRequestScheduler.PRIORITY_BACKGROUND) != null) {
+                        break;
+                    }
+                    mPendingWeatherRequests.put(key, pending);
+                }
+            }
+            schedulePrefetchLocked();
+        }
+        // Already on the dispatch thread
+        mDispatchWeatherRequests.run();
+    }
+
+    private void completeWeatherRequestFromCache(RequestInfo info, WeatherInfo weatherInfo) {
+        synchronized (mMutex) {
+            if (!info.isQueryOnlyWeatherRequest()) {
+                final long identity = Binder.clearCallingIdentity();
+                try {
+                    updateWeatherInfoLocked(weatherInfo);
+                } finally {
+                    Binder.restoreCallingIdentity(identity);
+                }
+            }
+            notifyWeatherRequestCompleted(info,
+                    LineageWeatherManager.RequestStatus.COMPLETED, weatherInfo);
         }
     }
 
     private void processCityNameLookupRequest(RequestInfo info) {
+        final List<WeatherLocation> cachedLocations = mCityLookupCache.get(info.getCityName());
+        if (cachedLocations != null) {
+            final IRequestInfoListener listener = info.getRequestListener();
+            if (isValidListener(listener)) {
+                try {
+                    listener.onLookupCityRequestCompleted(info,
+                            LineageWeatherManager.RequestStatus.COMPLETED, cachedLocations);
+                } catch (RemoteException e) {
+                }
+            }
+            return;
+        }
         if (!mIsWeatherProviderServiceBound) {
             final IRequestInfoListener listener = info.getRequestListener();
             if (listener != null && listener.asBinder().pingBinder()) {
@@ -299,6 +819,29 @@ public class LineageWeatherManagerService extends LineageSystemService {
     }
 
     private void processCancelRequest(int requestId) {
+        synchronized (mMutex) {
+            final PendingWeatherRequest pending = mPendingWeatherRequestIds.get(requestId);
+            if (pending != null) {
+                mPendingWeatherRequestIds.remove(requestId);
+                for (int i = 0; i < pending.waiters.size(); i++) {
+                    if (pending.waiters.get(i).hashCode() == requestId) {
+                        pending.waiters.remove(i);
+                        break;
+                    }
+                }
+                if (!pending.waiters.isEmpty()) {
+                    // Others are still waiting for the provider's result
+                    return;
+                }
+                mPendingWeatherRequests.remove(pending.key);
+                if (pending.queued) {
+                    // Never reached the provider, nothing to cancel there
+                    mRequestScheduler.remove(pending);
+                    return;
+                }
+                requestId = pending.providerRequest.hashCode();
+            }
+        }
         if (mIsWeatherProviderServiceBound) {
             try {
                 mWeatherProviderService.cancelRequest(requestId);
@@ -312,6 +855,8 @@ public class LineageWeatherManagerService extends LineageSystemService {
         public void onServiceConnected(ComponentName name, IBinder service) {
             mWeatherProviderService = IWeatherProviderService.Stub.asInterface(service);
             mIsWeatherProviderServiceBound = true;
+            mProviderSupportsBatch = false;
+            mCityLookupCache.setPrefixMatching(false);
             try {
                 mWeatherProviderService.setServiceClient(mServiceClient);
             } catch(RemoteException e) {
@@ -326,6 +871,9 @@ public class LineageWeatherManagerService extends LineageSystemService {
         public void onServiceDisconnected(ComponentName name) {
             mWeatherProviderService = null;
             mIsWeatherProviderServiceBound = false;
+            mProviderSupportsBatch = false;
+            mCityLookupCache.setPrefixMatching(false);
+            failPendingWeatherRequests();
             Slog.d(TAG, "Connection with " + name.flattenToString() + " has been closed");
         }
     };
@@ -374,12 +922,20 @@ public class LineageWeatherManagerService extends LineageSystemService {
             contentValuesList.add(contentValues);
         }
 
+        final ContentValues[] rows = contentValuesList.toArray(new ContentValues[0]);
+        if (Arrays.equals(rows, mLastWrittenWeatherRows)) {
+            // Same data as the provider already has, spare the write and the observers
+            mSkippedWeatherWrites++;
+            return true;
+        }
+
         if (size != getContext().getContentResolver().bulkInsert(
-                WeatherColumns.CURRENT_AND_FORECAST_WEATHER_URI,
-                contentValuesList.toArray(new ContentValues[0]))) {
+                WeatherColumns.CURRENT_AND_FORECAST_WEATHER_URI, rows)) {
             Slog.w(TAG, "Failed to update the weather content provider");
+            mLastWrittenWeatherRows = null;
             return false;
         }
+        mLastWrittenWeatherRows = rows;
         return true;
     }
 
@@ -475,10 +1031,15 @@ public class LineageWeatherManagerService extends LineageSystemService {
     private void registerSettingsObserver() {
         final Uri enabledWeatherProviderServiceUri = LineageSettings.Secure.getUriFor(
                 LineageSettings.Secure.WEATHER_PROVIDER_SERVICE);
+        final Uri requestLimitsUri = LineageSettings.Global.getUriFor(
+                LineageSettings.Global.WEATHER_REQUEST_LIMITS);
+        // One observer for both, so changes are applied in the order they were made
         ContentObserver observer = new ContentObserver(BackgroundThread.getHandler()) {
             @Override
             public void onChange(boolean selfChange, Uri uri, int userId) {
-                if (enabledWeatherProviderServiceUri.equals(uri)) {
+                if (requestLimitsUri.equals(uri)) {
+                    updateRequestLimits();
+                } else if (enabledWeatherProviderServiceUri.equals(uri)) {
                     String activeSrvc = LineageSettings.Secure.getString(mContext.getContentResolver(),
                             LineageSettings.Secure.WEATHER_PROVIDER_SERVICE);
                     disconnectClient();
@@ -493,9 +1054,34 @@ public class LineageWeatherManagerService extends LineageSystemService {
         };
         mContext.getContentResolver().registerContentObserver(enabledWeatherProviderServiceUri,
                 false, observer, UserHandle.USER_ALL);
+        mContext.getContentResolver().registerContentObserver(requestLimitsUri,
+                false, observer, UserHandle.USER_ALL);
+        updateRequestLimits();
+    }
+
+    private void updateRequestLimits() {
+        final KeyValueListParser parser = new KeyValueListParser(',');
+        try {
+            parser.setString(LineageSettings.Global.getString(mContext.getContentResolver(),
+                    LineageSettings.Global.WEATHER_REQUEST_LIMITS));
+        } catch (IllegalArgumentException e) {
+            Slog.w(TAG, "Invalid weather request limits, using the defaults", e);
+        }
+        synchronized (mMutex) {
+            mRequestScheduler.setLimits(
+                    parser.getInt(KEY_REQUEST_BURST, mDefaultRequestBurst),
+                    parser.getLong(KEY_REQUEST_REFILL_INTERVAL, mDefaultRequestRefillInterval),
+                    parser.getInt(KEY_REQUEST_QUEUE_SIZE, mDefaultRequestQueueSize));
+        }
     }
 
     private synchronized void disconnectClient() {
+        // Results from the previous provider must not be served anymore
+        mWeatherCache.clear();
+        mCityLookupCache.clear();
+        synchronized (mMutex) {
+            mLastWrittenWeatherRows = null;
+        }
         if (mIsWeatherProviderServiceBound) {
             //let's cancel any pending request
             try {
@@ -513,5 +1099,6 @@ public class LineageWeatherManagerService extends LineageSystemService {
             getContext().unbindService(mWeatherServiceProviderConnection);
             mIsWeatherProviderServiceBound = false;
         }
+        failPendingWeatherRequests();
     }
 }
@@ -26,6 +26,8 @@ import android.net.Uri;
 import android.net.wifi.WifiInfo;
 import android.net.wifi.WifiManager;
 import android.os.Message;
+import android.os.SystemClock;
+import android.os.Trace;
 import android.util.ArraySet;
 import com.android.internal.policy.IKeyguardService;
 import lineageos.providers.LineageSettings;
@@ -53,19 +55,26 @@ import lineageos.app.LineageContextConstants;
 import lineageos.app.Profile;
 import lineageos.app.ProfileGroup;
 import lineageos.app.ProfileManager;
+import lineageos.app.ProfileSummary;
 import lineageos.app.IProfileManager;
 
 import java.util.Collection;
 import java.io.File;
+import java.io.FileDescriptor;
 import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayDeque;
 import java.util.Arrays;
+import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /** @hide */
 public class ProfileManagerService extends LineageSystemService {
@@ -87,6 +96,12 @@ public class ProfileManagerService extends LineageSystemService {
     // Match UUIDs and names, used for reverse compatibility
     private Map<String, UUID> mProfileNames;
 
+    // Number of profiles per lower-cased name, for case-insensitive name lookups
+    private Map<String, Integer> mProfileNameCounts;
+
+    // Match secondary UUIDs to the UUID of the profile owning them
+    private Map<UUID, UUID> mSecondaryUuids;
+
     private Map<UUID, NotificationGroup> mGroups;
 
     private Profile mActiveProfile;
@@ -103,6 +118,11 @@ public class ProfileManagerService extends LineageSystemService {
     private ProfileTriggerHelper mTriggerHelper;
     private Profile mEmptyProfile;
 
+    // Bumped on every change visible to clients, used by ProfileManager to invalidate its cache
+    private final AtomicInteger mGeneration = new AtomicInteger();
+
+    private final ProfileSwitchLog mSwitchLog = new ProfileSwitchLog();
+
     private Runnable mBindKeyguard = new Runnable() {
         @Override
         public void run() {
@@ -147,6 +167,8 @@ public class ProfileManagerService extends LineageSystemService {
                 case MSG_SEND_PROFILE_STATE:
                     Intent newState = new Intent(ProfileManager.PROFILES_STATE_CHANGED_ACTION);
                     newState.putExtra(ProfileManager.EXTRA_PROFILES_STATE, msg.arg1);
+                    newState.putExtra(ProfileManager.EXTRA_PROFILES_GENERATION,
+                            mGeneration.incrementAndGet());
 
                     mContext.sendBroadcastAsUser(newState, UserHandle.ALL);
 
@@ -303,6 +325,8 @@ public class ProfileManagerService extends LineageSystemService {
         mTriggerHelper = new ProfileTriggerHelper(mContext, mHandler, this);
         mProfiles = new HashMap<UUID, Profile>();
         mProfileNames = new HashMap<String, UUID>();
+        mProfileNameCounts = new HashMap<String, Integer>();
+        mSecondaryUuids = new HashMap<UUID, UUID>();
         mGroups = new HashMap<UUID, NotificationGroup>();
         mEmptyProfile = new Profile("EmptyProfile");
         mDirty = false;
@@ -390,6 +414,7 @@ public class ProfileManagerService extends LineageSystemService {
             addProfileInternal(profile);
             long token = clearCallingIdentity();
             persistIfDirty();
+            sendProfilesChanged();
             restoreCallingIdentity(token);
             return true;
         }
@@ -419,6 +444,19 @@ public class ProfileManagerService extends LineageSystemService {
             return profiles;
         }
 
+        @Override
+        public ProfileSummary[] getProfileSummaries() {
+            final Profile active = isEnabled() ? getActiveProfileInternal() : null;
+            final Collection<Profile> profileList = getProfileList();
+            final ProfileSummary[] summaries = new ProfileSummary[profileList.size()];
+            int i = 0;
+            for (Profile profile : profileList) {
+                summaries[i++] = new ProfileSummary(profile, profile == active);
+            }
+            Arrays.sort(summaries);
+            return summaries;
+        }
+
         @Override
         public Profile getActiveProfile() {
             if (!isEnabled()) {
@@ -431,11 +469,13 @@ public class ProfileManagerService extends LineageSystemService {
         @Override
         public boolean removeProfile(Profile profile) {
             enforceChangePermissions();
-            if (mProfileNames.remove(profile.getName()) != null
-                    && mProfiles.remove(profile.getUuid()) != null) {
+            Profile old = mProfiles.remove(profile.getUuid());
+            if (old != null) {
+                removeProfileFromIndex(old);
                 mDirty = true;
                 long token = clearCallingIdentity();
                 persistIfDirty();
+                sendProfilesChanged();
                 restoreCallingIdentity(token);
                 return true;
             } else {
@@ -452,9 +492,9 @@ public class ProfileManagerService extends LineageSystemService {
                 return;
             }
 
-            mProfileNames.remove(old.getName());
-            mProfileNames.put(profile.getName(), profile.getUuid());
+            removeProfileFromIndex(old);
             mProfiles.put(profile.getUuid(), profile);
+            addProfileToIndex(profile);
             /* no need to set mDirty, if the profile was actually changed,
              * it's marked as dirty by itself */
             long token = clearCallingIdentity();
@@ -463,6 +503,8 @@ public class ProfileManagerService extends LineageSystemService {
             // Also update if we changed the active profile
             if (mActiveProfile != null && mActiveProfile.getUuid().equals(profile.getUuid())) {
                 setActiveProfileInternal(profile, true);
+            } else {
+                sendProfilesChanged();
             }
             restoreCallingIdentity(token);
         }
@@ -475,12 +517,8 @@ public class ProfileManagerService extends LineageSystemService {
         @Override
         @Deprecated
         public boolean profileExistsByName(String profileName) {
-            for (Map.Entry<String, UUID> entry : mProfileNames.entrySet()) {
-                if (entry.getKey().equalsIgnoreCase(profileName)) {
-                    return true;
-                }
-            }
-            return false;
+            return profileName != null
+                    && mProfileNameCounts.containsKey(profileName.toLowerCase(Locale.ROOT));
         }
 
         @Override
@@ -505,6 +543,7 @@ public class ProfileManagerService extends LineageSystemService {
             addNotificationGroupInternal(group);
             long token = clearCallingIdentity();
             persistIfDirty();
+            sendProfilesChanged();
             restoreCallingIdentity(token);
         }
 
@@ -519,6 +558,7 @@ public class ProfileManagerService extends LineageSystemService {
             }
             long token = clearCallingIdentity();
             persistIfDirty();
+            sendProfilesChanged();
             restoreCallingIdentity(token);
         }
 
@@ -535,6 +575,7 @@ public class ProfileManagerService extends LineageSystemService {
              * it's marked as dirty by itself */
             long token = clearCallingIdentity();
             persistIfDirty();
+            sendProfilesChanged();
             restoreCallingIdentity(token);
         }
 
@@ -568,6 +609,30 @@ public class ProfileManagerService extends LineageSystemService {
                 restoreCallingIdentity(token);
             }
         }
+
+        @Override
+        public void dump(FileDescriptor fd, PrintWriter pw, String[] args) {
+            mContext.enforceCallingOrSelfPermission(android.Manifest.permission.DUMP, TAG);
+
+            pw.println();
+            pw.println("ProfileManager Service State:");
+            pw.println();
+            if (mProfiles == null) {
+                pw.println(" Not initialized yet.");
+                return;
+            }
+            if (mActiveProfile != null) {
+                pw.println(" Active profile: " + mActiveProfile.getName()
+                        + " (" + mActiveProfile.getUuid() + ")");
+            }
+            pw.println(" Profiles: " + mProfiles.size());
+            pw.println(" Notification groups: " + mGroups.size());
+            pw.println(" Generation: " + mGeneration.get());
+            pw.println();
+            mTriggerHelper.dump(pw);
+            pw.println();
+            mSwitchLog.dump(pw);
+        }
     };
 
     private void addProfileInternal(Profile profile) {
@@ -576,11 +641,52 @@ public class ProfileManagerService extends LineageSystemService {
             ensureGroupInProfile(profile, group, false);
         }
         ensureGroupInProfile(profile, mWildcardGroup, true);
-        mProfiles.put(profile.getUuid(), profile);
-        mProfileNames.put(profile.getName(), profile.getUuid());
+        Profile old = mProfiles.put(profile.getUuid(), profile);
+        if (old != null) {
+            removeProfileFromIndex(old);
+        }
+        addProfileToIndex(profile);
         mDirty = true;
     }
 
+    private void addProfileToIndex(Profile profile) {
+        final UUID uuid = profile.getUuid();
+        final String name = profile.getName();
+        if (name != null) {
+            mProfileNames.put(name, uuid);
+            final String key = name.toLowerCase(Locale.ROOT);
+            final Integer count = mProfileNameCounts.get(key);
+            mProfileNameCounts.put(key, count == null ? 1 : count + 1);
+        }
+        for (UUID secondaryUuid : profile.getSecondaryUuids()) {
+            mSecondaryUuids.put(secondaryUuid, uuid);
+        }
+    }
+
+    private void removeProfileFromIndex(Profile profile) {
+        final UUID uuid = profile.getUuid();
+        final String name = profile.getName();
+        if (name != null) {
+            if (uuid.equals(mProfileNames.get(name))) {
+                mProfileNames.remove(name);
+            }
+            final String key = name.toLowerCase(Locale.ROOT);
+            final Integer count = mProfileNameCounts.get(key);
+            if (count != null) {
+                if (count > 1) {
+                    mProfileNameCounts.put(key, count - 1);
+                } else {
+                    mProfileNameCounts.remove(key);
+                }
+            }
+        }
+        for (UUID secondaryUuid : profile.getSecondaryUuids()) {
+            if (uuid.equals(mSecondaryUuids.get(secondaryUuid))) {
+                mSecondaryUuids.remove(secondaryUuid);
+            }
+        }
+    }
+
     private void ensureGroupInProfile(Profile profile,
                                       NotificationGroup group, boolean defaultGroup) {
         if (profile.getProfileGroup(group.getUuid()) != null) {
@@ -605,12 +711,9 @@ public class ProfileManagerService extends LineageSystemService {
             return mProfiles.get(profileUuid);
         }
         // if no match was found: try secondary UUID
-        for (Profile p : mProfiles.values()) {
-            for (UUID uuid : p.getSecondaryUuids()) {
-                if (profileUuid.equals(uuid)) {
-                    return p;
-                }
-            }
+        final UUID primaryUuid = mSecondaryUuids.get(profileUuid);
+        if (primaryUuid != null) {
+            return mProfiles.get(primaryUuid);
         }
         // nothing found
         return null;
@@ -786,10 +889,16 @@ public class ProfileManagerService extends LineageSystemService {
 
         if (doInit) {
             if (LOCAL_LOGV) Log.v(TAG, "setActiveProfile(Profile, boolean) - Running init");
+            final long startTime = SystemClock.elapsedRealtimeNanos();
+
             // Call profile's "doSelect"
+            Trace.traceBegin(Trace.TRACE_TAG_SYSTEM_SERVER, "ProfileSwitch:select");
             mActiveProfile.doSelect(mContext, mKeyguardService);
+            Trace.traceEnd(Trace.TRACE_TAG_SYSTEM_SERVER);
+            final long selectTime = SystemClock.elapsedRealtimeNanos();
 
             // Notify other applications of newly selected profile.
+            Trace.traceBegin(Trace.TRACE_TAG_SYSTEM_SERVER, "ProfileSwitch:broadcast");
             Intent broadcast = new Intent(ProfileManager.INTENT_ACTION_PROFILE_SELECTED);
             broadcast.putExtra(ProfileManager.EXTRA_PROFILE_NAME,
                     mActiveProfile.getName());
@@ -799,10 +908,21 @@ public class ProfileManagerService extends LineageSystemService {
                     lastProfile.getName());
             broadcast.putExtra(ProfileManager.EXTRA_LAST_PROFILE_UUID,
                     lastProfile.getUuid().toString());
+            broadcast.putExtra(ProfileManager.EXTRA_PROFILES_GENERATION,
+                    mGeneration.incrementAndGet());
             broadcast.addFlags(Intent.FLAG_RECEIVER_INCLUDE_BACKGROUND);
 
             mContext.sendBroadcastAsUser(broadcast, UserHandle.ALL);
+            Trace.traceEnd(Trace.TRACE_TAG_SYSTEM_SERVER);
+            final long broadcastTime = SystemClock.elapsedRealtimeNanos();
+
+            Trace.traceBegin(Trace.TRACE_TAG_SYSTEM_SERVER, "ProfileSwitch:persist");
             persistIfDirty();
+            Trace.traceEnd(Trace.TRACE_TAG_SYSTEM_SERVER);
+            final long persistTime = SystemClock.elapsedRealtimeNanos();
+
+            mSwitchLog.log(lastProfile, mActiveProfile, selectTime - startTime,
+                    broadcastTime - selectTime, persistTime - broadcastTime);
         } else if (lastProfile != mActiveProfile && ActivityManagerNative.isSystemReady()) {
             // Something definitely changed: notify.
             Intent broadcast = new Intent(ProfileManager.INTENT_ACTION_PROFILE_UPDATED);
@@ -811,9 +931,19 @@ public class ProfileManagerService extends LineageSystemService {
             broadcast.putExtra(ProfileManager.EXTRA_PROFILE_UUID,
                     mActiveProfile.getUuid().toString());
             mContext.sendBroadcastAsUser(broadcast, UserHandle.ALL);
+            sendProfilesChanged();
         }
     }
 
+    private void sendProfilesChanged() {
+        // Only ProfileManager instances listen for this, don't wake up anything else
+        Intent broadcast = new Intent(ProfileManager.INTENT_ACTION_PROFILES_CHANGED);
+        broadcast.putExtra(ProfileManager.EXTRA_PROFILES_GENERATION,
+                mGeneration.incrementAndGet());
+        broadcast.addFlags(Intent.FLAG_RECEIVER_REGISTERED_ONLY);
+        mContext.sendBroadcastAsUser(broadcast, UserHandle.ALL);
+    }
+
     private void addNotificationGroupInternal(NotificationGroup group) {
         if (mGroups.put(group.getUuid(), group) == null) {
             // If the above is true, then the ProfileGroup shouldn't exist in
@@ -824,4 +954,72 @@ public class ProfileManagerService extends LineageSystemService {
         }
         mDirty = true;
     }
+
+    /**
+     * Ring buffer of the most recent profile switches, with the time spent in each phase.
+     * The select phase includes the keyguard calls made by {@link Profile#doSelect}.
+     */
+    private static class ProfileSwitchLog {
+        private static final int LOG_BUF_SIZE = 25;
+
+        static class Entry {
+            private final long timestamp;
+            private final String from;
+            private final String to;
+            private final long selectNanos;
+            private final long broadcastNanos;
+            private final long persistNanos;
+
+            Entry(long timestamp_, String from_, String to_, long selectNanos_,
+                    long broadcastNanos_, long persistNanos_) {
+                timestamp = timestamp_;
+                from = from_;
+                to = to_;
+                selectNanos = selectNanos_;
+                broadcastNanos = broadcastNanos_;
+                persistNanos = persistNanos_;
+            }
+
+            long totalNanos() {
+                return selectNanos + broadcastNanos + persistNanos;
+            }
+        }
+
+        private final ArrayDeque<Entry> mBuffer = new ArrayDeque<>(LOG_BUF_SIZE);
+        private long mSwitchCount;
+        private long mMaxTotalNanos;
+
+        void log(Profile from, Profile to, long selectNanos, long broadcastNanos,
+                long persistNanos) {
+            Entry entry = new Entry(System.currentTimeMillis(),
+                    from != null ? from.getName() : null, to.getName(),
+                    selectNanos, broadcastNanos, persistNanos);
+            if (LOCAL_LOGV) {
+                Log.v(TAG, "Profile switch took " + entry.totalNanos() / 1000 + "us");
+            }
+            synchronized (mBuffer) {
+                mBuffer.add(entry);
+                if (mBuffer.size() > LOG_BUF_SIZE) {
+                    mBuffer.poll();
+                }
+                mSwitchCount++;
+                mMaxTotalNanos = Math.max(mMaxTotalNanos, entry.totalNanos());
+            }
+        }
+
+        void dump(PrintWriter pw) {
+            synchronized (mBuffer) {
+                pw.println(" Profile switches: " + mSwitchCount
+                        + ", slowest " + mMaxTotalNanos / 1000 + "us");
+                pw.println(" Recent profile switches (select/broadcast/persist/total us):");
+                for (Entry entry : mBuffer) {
+                    pw.println(String.format("  %1$tH:%1$tM:%1$tS.%1$tL: %2$s -> %3$s"
+                            + "  %4$d/%5$d/%6$d/%7$d",
+                            new Date(entry.timestamp), entry.from, entry.to,
+                            entry.selectNanos / 1000, entry.broadcastNanos / 1000,
+                            entry.persistNanos / 1000, entry.totalNanos() / 1000));
+                }
+            }
+        }
+    }
 }
@@ -26,6 +26,7 @@ import android.net.NetworkInfo;
 import android.net.wifi.WifiInfo;
 import android.net.wifi.WifiManager;
 import android.os.Handler;
+import android.os.SystemClock;
 import android.os.UserHandle;
 import android.util.Log;
 import lineageos.app.Profile;
@@ -33,6 +34,9 @@ import lineageos.app.Profile.ProfileTrigger;
 import lineageos.app.ProfileManager;
 import lineageos.providers.LineageSettings;
 
+import org.lineageos.internal.util.ProfileTriggerDebouncer;
+
+import java.io.PrintWriter;
 import java.util.UUID;
 
 /**
@@ -50,6 +54,25 @@ public class ProfileTriggerHelper extends BroadcastReceiver {
     private IntentFilter mIntentFilter;
     private boolean mFilterRegistered = false;
 
+    private final Handler mHandler;
+    // Collapses flapping trigger states and enforces the minimum dwell time of a profile
+    private final ProfileTriggerDebouncer mDebouncer;
+
+    private final ProfileTriggerDebouncer.Callback mTriggerCallback =
+            new ProfileTriggerDebouncer.Callback() {
+        @Override
+        public boolean onTriggerSettled(int type, String id, int state) {
+            return checkTriggers(type, id, state);
+        }
+    };
+
+    private final Runnable mProcessPendingTriggers = new Runnable() {
+        @Override
+        public void run() {
+            processPendingTriggers();
+        }
+    };
+
     private class SettingsObserver extends ContentObserver {
         public SettingsObserver(Handler handler) {
             super(handler);
@@ -66,8 +89,15 @@ public class ProfileTriggerHelper extends BroadcastReceiver {
             ProfileManagerService profileManagerService) {
         mContext = context;
         mManagerService = profileManagerService;
+        mHandler = handler;
         mSettingsObserver = new SettingsObserver(handler);
 
+        mDebouncer = new ProfileTriggerDebouncer(
+                mContext.getResources().getInteger(
+                        org.lineageos.platform.internal.R.integer.config_profileTriggerSettleTime),
+                mContext.getResources().getInteger(
+                        org.lineageos.platform.internal.R.integer.config_profileTriggerMinDwellTime));
+
         mWifiManager = (WifiManager) mContext.getSystemService(Context.WIFI_SERVICE);
         mLastConnectedSSID = getActiveSSID();
 
@@ -94,6 +124,8 @@ public class ProfileTriggerHelper extends BroadcastReceiver {
             Log.v(TAG, "Disabling");
             mContext.unregisterReceiver(this);
             mFilterRegistered = false;
+            mHandler.removeCallbacks(mProcessPendingTriggers);
+            mDebouncer.clear();
         }
     }
 
@@ -105,14 +137,14 @@ public class ProfileTriggerHelper extends BroadcastReceiver {
             NetworkInfo networkInfo = intent.getParcelableExtra(WifiManager.EXTRA_NETWORK_INFO);
             NetworkInfo.DetailedState state = networkInfo.getDetailedState();
             if (NetworkInfo.DetailedState.DISCONNECTED.equals(state)) {
-                checkTriggers(Profile.TriggerType.WIFI, mLastConnectedSSID,
+                scheduleTrigger(Profile.TriggerType.WIFI, mLastConnectedSSID,
                         Profile.TriggerState.ON_DISCONNECT);
                 mLastConnectedSSID = WifiManager.UNKNOWN_SSID;
             } else if (NetworkInfo.DetailedState.CONNECTED.equals(state)) {
                 String ssid = getActiveSSID();
                 if (ssid != null) {
                     mLastConnectedSSID = ssid;
-                    checkTriggers(Profile.TriggerType.WIFI, mLastConnectedSSID,
+                    scheduleTrigger(Profile.TriggerType.WIFI, mLastConnectedSSID,
                             Profile.TriggerState.ON_CONNECT);
                 }
             }
@@ -122,7 +154,7 @@ public class ProfileTriggerHelper extends BroadcastReceiver {
                     ? Profile.TriggerState.ON_CONNECT : Profile.TriggerState.ON_DISCONNECT;
             BluetoothDevice device = intent.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
 
-            checkTriggers(Profile.TriggerType.BLUETOOTH, device.getAddress(), triggerState);
+            scheduleTrigger(Profile.TriggerType.BLUETOOTH, device.getAddress(), triggerState);
 /*        } else if (action.equals(AudioManager.A2DP_ROUTE_CHANGED_ACTION)) {
             BluetoothDevice device = intent
                     .getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
@@ -135,11 +167,35 @@ public class ProfileTriggerHelper extends BroadcastReceiver {
         }
     }
 
-    private void checkTriggers(int type, String id, int newState) {
+    /**
+     * Queue a trigger state change until it has been stable for the settle time, so that
+     * flapping connections collapse into at most one profile switch.
+     */
+    private void scheduleTrigger(int type, String id, int newState) {
+        mDebouncer.schedule(SystemClock.uptimeMillis(), type, id, newState);
+        scheduleProcessing();
+    }
+
+    private void scheduleProcessing() {
+        final long nextTime = mDebouncer.getNextProcessTime();
+        if (nextTime < 0) {
+            return;
+        }
+        mHandler.removeCallbacks(mProcessPendingTriggers);
+        mHandler.postAtTime(mProcessPendingTriggers, nextTime);
+    }
+
+    private void processPendingTriggers() {
+        mDebouncer.process(SystemClock.uptimeMillis(), mTriggerCallback);
+        scheduleProcessing();
+    }
+
+    private boolean checkTriggers(int type, String id, int newState) {
         final Profile activeProfile = mManagerService.getActiveProfileInternal();
         final UUID currentProfileUuid = activeProfile.getUuid();
 
-        boolean newProfileSelected = false;
+        // Like before, the last matching profile wins, but only one switch is made
+        Profile newProfile = null;
         for (Profile p : mManagerService.getProfileList()) {
             final int profileTriggerState = p.getTriggerState(type, id);
             if (newState != profileTriggerState) {
@@ -147,11 +203,15 @@ public class ProfileTriggerHelper extends BroadcastReceiver {
             }
 
             if (!currentProfileUuid.equals(p.getUuid())) {
-                mManagerService.setActiveProfileInternal(p, true);
-                newProfileSelected = true;
+                newProfile = p;
             }
         }
 
+        final boolean newProfileSelected = newProfile != null;
+        if (newProfileSelected) {
+            mManagerService.setActiveProfileInternal(newProfile, true);
+        }
+
         if (!newProfileSelected) {
             //Does the active profile actually cares about this event?
             for (ProfileTrigger trigger : activeProfile.getTriggersFromType(type)) {
@@ -176,6 +236,12 @@ public class ProfileTriggerHelper extends BroadcastReceiver {
             }
 
         }
+        return newProfileSelected;
+    }
+
+    void dump(PrintWriter pw) {
+        pw.println(" Profile triggers:");
+        mDebouncer.dump(pw, "  ");
     }
 
     private String removeDoubleQuotes(String string) {
@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2020 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lineageos.platform.internal;
+
+import android.location.Location;
+import android.os.SystemClock;
+import android.text.TextUtils;
+import android.util.LruCache;
+import lineageos.weather.RequestInfo;
+import lineageos.weather.WeatherInfo;
+import lineageos.weather.WeatherLocation;
+
+import java.io.PrintWriter;
+
+/**
+ * Bounded LRU cache of weather results, keyed by location and temperature unit. Geographical
+ * locations are bucketed into cells, so nearby requests share the same entry.
+ * @hide
+ */
+class WeatherCache {
+
+    // Size of a geo cell in degrees, roughly 1.1km of latitude
+    private static final double GEO_CELL_SIZE = 0.01;
+
+    private static class Entry {
+        final WeatherInfo weatherInfo;
+        final long timestamp;
+
+        Entry(WeatherInfo weatherInfo, long timestamp) {
+            this.weatherInfo = weatherInfo;
+            this.timestamp = timestamp;
+        }
+    }
+
+    private final LruCache<String, Entry> mCache;
+    private final long mTtlMs;
+
+    private int mHits;
+    private int mMisses;
+    private int mExpired;
+
+    WeatherCache(int maxEntries, long ttlMs) {
+        mCache = new LruCache<>(Math.max(1, maxEntries));
+        mTtlMs = ttlMs;
+    }
+
+    /**
+     * Get the key identifying the location and temperature unit of a weather request
+     * @return the key, or null if this is not a weather request
+     */
+    static String getKey(RequestInfo info) {
+        switch (info.getRequestType()) {
+            case RequestInfo.TYPE_WEATHER_BY_GEO_LOCATION_REQ: {
+                final Location location = info.getLocation();
+                return "geo:" + Math.round(location.getLatitude() / GEO_CELL_SIZE)
+                        + ":" + Math.round(location.getLongitude() / GEO_CELL_SIZE)
+                        + ":" + info.getTemperatureUnit();
+            }
+            case RequestInfo.TYPE_WEATHER_BY_WEATHER_LOCATION_REQ: {
+                final WeatherLocation location = info.getWeatherLocation();
+                final String id = !TextUtils.isEmpty(location.getCityId())
+                        ? location.getCityId()
+                        : location.getCity() + "," + location.getState()
+                                + "," + location.getPostalCode() + "," + location.getCountryId();
+                return "loc:" + id + ":" + info.getTemperatureUnit();
+            }
+            default:
+                return null;
+        }
+    }
+
+    boolean isEnabled() {
+        return mTtlMs > 0;
+    }
+
+    synchronized WeatherInfo get(RequestInfo info) {
+        final String key = getKey(info);
+        if (!isEnabled() || key == null) {
+            return null;
+        }
+        final Entry entry = mCache.get(key);
+        if (entry == null) {
+            mMisses++;
+            return null;
+        }
+        if (SystemClock.elapsedRealtime() - entry.timestamp > mTtlMs) {
+            mCache.remove(key);
+            mExpired++;
+            mMisses++;
+            return null;
+        }
+        mHits++;
+        return entry.weatherInfo;
+    }
+
+    synchronized void put(RequestInfo info, WeatherInfo weatherInfo) {
+        final String key = getKey(info);
+        if (!isEnabled() || key == null || weatherInfo == null) {
+            return;
+        }
+        mCache.put(key, new Entry(weatherInfo, SystemClock.elapsedRealtime()));
+    }
+
+    synchronized void clear() {
+        mCache.evictAll();
+    }
+
+    synchronized void dump(PrintWriter pw) {
+        pw.println(" Weather cache:");
+        pw.println("  TTL: " + mTtlMs + "ms");
+        pw.println("  Entries: " + mCache.size() + "/" + mCache.maxSize());
+        pw.println("  Hits: " + mHits);
+        pw.println("  Misses: " + mMisses + " (" + mExpired + " expired)");
+        pw.println("  Evictions: " + mCache.evictionCount());
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2020 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lineageos.platform.internal;
+
+import android.os.SystemClock;
+import lineageos.weather.IRequestInfoListener;
+import lineageos.weather.RequestInfo;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps track of the locations clients recently requested weather for, and which of them are
+ * due for a background refresh. Not thread safe, callers must hold their own lock.
+ * @hide
+ */
+class WeatherPrefetcher {
+
+    // Locations nobody asked about for this long are not refreshed anymore
+    private static final long RECENT_REQUEST_WINDOW_MS = 24 * 60 * 60 * 1000;
+    private static final int MAX_LOCATIONS = 4;
+
+    private static class Location {
+        // Owned by the service, so the client's listener and request id are not kept around
+        final RequestInfo requestInfo;
+        long lastRequestTime;
+        long lastFetchTime;
+
+        Location(RequestInfo requestInfo) {
+            this.requestInfo = requestInfo;
+        }
+    }
+
+    // Least recently requested location first
+    private final LinkedHashMap<String, Location> mLocations =
+            new LinkedHashMap<String, Location>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Location> eldest) {
+            return size() > MAX_LOCATIONS;
+        }
+    };
+    private final long mIntervalMs;
+    private final IRequestInfoListener mListener;
+
+    private int mRounds;
+    private int mSkippedRounds;
+    private int mPrefetched;
+
+    /**
+     * @param listener listener of the prefetch requests, the results are delivered through the
+     *                 weather provider client anyway
+     */
+    WeatherPrefetcher(long intervalMs, IRequestInfoListener listener) {
+        mIntervalMs = intervalMs;
+        mListener = listener;
+    }
+
+    boolean isEnabled() {
+        return mIntervalMs > 0;
+    }
+
+    long getInterval() {
+        return mIntervalMs;
+    }
+
+    boolean hasLocations() {
+        return !mLocations.isEmpty();
+    }
+
+    /**
+     * Record a weather request submitted by a client
+     */
+    void noteRequest(String key, RequestInfo info) {
+        if (!isEnabled() || key == null) {
+            return;
+        }
+        Location location = mLocations.remove(key);
+        if (location == null) {
+            location = new Location(info.copyWithListener(mListener));
+        }
+        mLocations.put(key, location);
+        location.lastRequestTime = SystemClock.elapsedRealtime();
+    }
+
+    /**
+     * Record that the provider returned weather data for a location
+     */
+    void noteFetched(String key) {
+        final Location location = key != null ? mLocations.get(key) : null;
+        if (location != null) {
+            location.lastFetchTime = SystemClock.elapsedRealtime();
+        }
+    }
+
+    void noteSkippedRound() {
+        mSkippedRounds++;
+    }
+
+    /**
+     * Get the requests to send to the provider to refresh the recently requested locations.
+     * Locations fetched less than the prefetch interval ago are left alone. Each round gets
+     * new requests, none of them share a request id with a client request.
+     */
+    List<RequestInfo> getDueRequests() {
+        final long now = SystemClock.elapsedRealtime();
+        final ArrayList<RequestInfo> due = new ArrayList<>();
+        mRounds++;
+        final Iterator<Location> it = mLocations.values().iterator();
+        while (it.hasNext()) {
+            final Location location = it.next();
+            if (now - location.lastRequestTime > RECENT_REQUEST_WINDOW_MS) {
+                it.remove();
+            } else if (location.lastFetchTime == 0
+                    || now - location.lastFetchTime >= mIntervalMs) {
+                due.add(location.requestInfo.copyWithListener(mListener));
+            }
+        }
+        mPrefetched += due.size();
+        return due;
+    }
+
+    void dump(PrintWriter pw) {
+        pw.println(" Weather prefetch:");
+        pw.println("  Interval: " + mIntervalMs + "ms");
+        pw.println("  Locations: " + mLocations.size() + "/" + MAX_LOCATIONS);
+        pw.println("  Rounds: " + mRounds + " (" + mSkippedRounds + " skipped)");
+        pw.println("  Prefetched: " + mPrefetched);
+    }
+}
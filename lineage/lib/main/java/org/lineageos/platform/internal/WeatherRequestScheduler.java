@@ -0,0 +1,177 @@
+/*
+ * Copyright (C) 2020 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lineageos.platform.internal;
+
+import android.os.SystemClock;
+import android.util.SparseArray;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+
+/**
+ * Admission control for requests sent to the weather provider: a token bucket per calling
+ * UID, and a bounded queue where foreground callers are served first. Not thread safe, callers
+ * must hold their own lock.
+ * @hide
+ */
+class WeatherRequestScheduler<T> {
+
+    static final int PRIORITY_BACKGROUND = 0;
+    static final int PRIORITY_FOREGROUND = 1;
+
+    private static class TokenBucket {
+        double tokens;
+        long lastRefillTime;
+    }
+
+    private static class Entry<T> {
+        final T item;
+        final int priority;
+        final long sequence;
+
+        Entry(T item, int priority, long sequence) {
+            this.item = item;
+            this.priority = priority;
+            this.sequence = sequence;
+        }
+    }
+
+    private int mBucketCapacity;
+    private long mRefillIntervalMs;
+    private int mMaxQueueSize;
+
+    private final SparseArray<TokenBucket> mBuckets = new SparseArray<>();
+    // Highest priority first, then in arrival order
+    private final PriorityQueue<Entry<T>> mQueue = new PriorityQueue<>(11,
+            (a, b) -> a.priority != b.priority
+                    ? Integer.compare(b.priority, a.priority)
+                    : Long.compare(a.sequence, b.sequence));
+    private long mSequence;
+
+    private int mRateLimited;
+    private int mRejected;
+    private int mEvicted;
+    private int mDispatched;
+
+    WeatherRequestScheduler(int bucketCapacity, long refillIntervalMs, int maxQueueSize) {
+        setLimits(bucketCapacity, refillIntervalMs, maxQueueSize);
+    }
+
+    /**
+     * Change the limits. Every UID starts over with a full bucket, queued items are kept even
+     * if the queue is now over its size.
+     */
+    void setLimits(int bucketCapacity, long refillIntervalMs, int maxQueueSize) {
+        mBucketCapacity = Math.max(1, bucketCapacity);
+        mRefillIntervalMs = Math.max(1, refillIntervalMs);
+        mMaxQueueSize = Math.max(1, maxQueueSize);
+        mBuckets.clear();
+    }
+
+    /**
+     * Take a token from the bucket of the given UID
+     * @return false if the UID ran out of tokens and must be rate limited
+     */
+    boolean tryAcquire(int uid) {
+        final long now = SystemClock.elapsedRealtime();
+        TokenBucket bucket = mBuckets.get(uid);
+        if (bucket == null) {
+            bucket = new TokenBucket();
+            bucket.tokens = mBucketCapacity;
+            bucket.lastRefillTime = now;
+            mBuckets.put(uid, bucket);
+        }
+        bucket.tokens = Math.min(mBucketCapacity,
+                bucket.tokens + (double) (now - bucket.lastRefillTime) / mRefillIntervalMs);
+        bucket.lastRefillTime = now;
+        if (bucket.tokens < 1) {
+            mRateLimited++;
+            return false;
+        }
+        bucket.tokens -= 1;
+        return true;
+    }
+
+    /**
+     * Queue an item. If the queue is full, the newest item of the lowest priority is dropped,
+     * which may be the offered item itself.
+     * @return the dropped item, or null if nothing had to be dropped
+     */
+    T offer(T item, int priority) {
+        final Entry<T> entry = new Entry<>(item, priority, mSequence++);
+        if (mQueue.size() < mMaxQueueSize) {
+            mQueue.add(entry);
+            return null;
+        }
+        Entry<T> victim = entry;
+        for (Entry<T> queued : mQueue) {
+            if (queued.priority < victim.priority
+                    || (queued.priority == victim.priority && queued.sequence > victim.sequence)) {
+                victim = queued;
+            }
+        }
+        if (victim == entry) {
+            mRejected++;
+        } else {
+            mQueue.remove(victim);
+            mQueue.add(entry);
+            mEvicted++;
+        }
+        return victim.item;
+    }
+
+    T poll() {
+        final Entry<T> entry = mQueue.poll();
+        if (entry == null) {
+            return null;
+        }
+        mDispatched++;
+        return entry.item;
+    }
+
+    boolean remove(T item) {
+        final Iterator<Entry<T>> it = mQueue.iterator();
+        while (it.hasNext()) {
+            if (it.next().item == item) {
+                it.remove();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    ArrayList<T> clear() {
+        final ArrayList<T> items = new ArrayList<>(mQueue.size());
+        for (Entry<T> entry : mQueue) {
+            items.add(entry.item);
+        }
+        mQueue.clear();
+        return items;
+    }
+
+    void dump(PrintWriter pw) {
+        pw.println(" Weather request scheduler:");
+        pw.println("  Burst: " + mBucketCapacity + ", refill every " + mRefillIntervalMs + "ms");
+        pw.println("  Queued: " + mQueue.size() + "/" + mMaxQueueSize);
+        pw.println("  Dispatched: " + mDispatched);
+        pw.println("  Rate limited: " + mRateLimited);
+        pw.println("  Rejected (queue full): " + mRejected);
+        pw.println("  Evicted by higher priority: " + mEvicted);
+    }
+}
@@ -0,0 +1,170 @@
+/*
+ * Copyright (C) 2020 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lineageos.platform.internal.display;
+
+import android.content.Context;
+import android.hardware.Sensor;
+import android.hardware.SensorEvent;
+import android.hardware.SensorEventListener;
+import android.hardware.SensorManager;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.PrintWriter;
+import java.util.Arrays;
+
+/**
+ * Owns the single light sensor registration used by LiveDisplay and
+ * fans the readings out to any number of {@link AmbientLuxObserver}s,
+ * each with its own thresholds and averaging window.
+ *
+ * The sensor is only registered while the screen is on and at least
+ * one observer is listening. Where the sensor has a hardware FIFO,
+ * events are batched up to the configured report latency.
+ */
+public class AmbientLightSensorHub {
+
+    private static final String TAG = "AmbientLightSensorHub";
+    private static final boolean DEBUG = Log.isLoggable(TAG, Log.DEBUG);
+
+    private final SensorManager mSensorManager;
+    private final Sensor mLightSensor;
+    private final Handler mHandler;
+
+    private final int mLightSensorRate;
+    private final int mMaxReportLatency;
+
+    // Copy-on-write, so dispatching a sensor event never allocates
+    private volatile AmbientLuxObserver[] mObservers = new AmbientLuxObserver[0];
+
+    private boolean mScreenOn = false;
+    private volatile boolean mSensorEnabled = false;
+
+    private long mEventCount = 0;
+    private float mLastLux = 0.0f;
+
+    public AmbientLightSensorHub(Context context, Handler handler) {
+        mHandler = handler;
+        mSensorManager = (SensorManager) context.getSystemService(Context.SENSOR_SERVICE);
+        mLightSensor = mSensorManager.getDefaultSensor(Sensor.TYPE_LIGHT);
+        mLightSensorRate = context.getResources().getInteger(
+                com.android.internal.R.integer.config_autoBrightnessLightSensorRate);
+        mMaxReportLatency = context.getResources().getInteger(
+                org.lineageos.platform.internal.R.integer.config_ambientLightSensorMaxLatency);
+    }
+
+    /**
+     * @return the rate at which the sensor is sampled, in milliseconds
+     */
+    int getSensorRate() {
+        return mLightSensorRate;
+    }
+
+    synchronized void subscribe(AmbientLuxObserver observer) {
+        for (AmbientLuxObserver o : mObservers) {
+            if (o == observer) {
+                return;
+            }
+        }
+        final AmbientLuxObserver[] observers = Arrays.copyOf(mObservers, mObservers.length + 1);
+        observers[observers.length - 1] = observer;
+        mObservers = observers;
+        updateSensorLocked();
+    }
+
+    synchronized void unsubscribe(AmbientLuxObserver observer) {
+        for (int i = 0; i < mObservers.length; i++) {
+            if (mObservers[i] == observer) {
+                final AmbientLuxObserver[] observers =
+                        new AmbientLuxObserver[mObservers.length - 1];
+                System.arraycopy(mObservers, 0, observers, 0, i);
+                System.arraycopy(mObservers, i + 1, observers, i, observers.length - i);
+                mObservers = observers;
+                updateSensorLocked();
+                return;
+            }
+        }
+    }
+
+    synchronized void setScreenOn(boolean screenOn) {
+        mScreenOn = screenOn;
+        updateSensorLocked();
+    }
+
+    private void updateSensorLocked() {
+        final boolean enable = mLightSensor != null && mScreenOn && mObservers.length > 0;
+        if (enable == mSensorEnabled) {
+            return;
+        }
+        mSensorEnabled = enable;
+        if (enable) {
+            // Only worth batching if the sensor can hold events in hardware
+            final int maxReportLatency = mLightSensor.getFifoMaxEventCount() > 0
+                    ? mMaxReportLatency : 0;
+            mSensorManager.registerListener(mListener, mLightSensor,
+                    mLightSensorRate * 1000, maxReportLatency * 1000, mHandler);
+        } else {
+            mSensorManager.unregisterListener(mListener);
+        }
+        if (DEBUG) {
+            Log.d(TAG, "sensor enabled=" + enable + " observers=" + mObservers.length);
+        }
+    }
+
+    private final SensorEventListener mListener = new SensorEventListener() {
+        @Override
+        public void onSensorChanged(SensorEvent event) {
+            if (!mSensorEnabled) {
+                return;
+            }
+            // Batched events are delivered back to back, place each one
+            // at the time it was sampled rather than when it arrived
+            final long now = SystemClock.uptimeMillis()
+                    - (SystemClock.elapsedRealtimeNanos() - event.timestamp) / 1000000;
+            final float lux = event.values[0];
+            mEventCount++;
+            mLastLux = lux;
+
+            final AmbientLuxObserver[] observers = mObservers;
+            for (int i = 0; i < observers.length; i++) {
+                observers[i].onLuxChanged(now, lux);
+            }
+        }
+
+        @Override
+        public void onAccuracyChanged(Sensor sensor, int accuracy) {
+            // Not used.
+        }
+    };
+
+    public void dump(PrintWriter pw) {
+        pw.println();
+        pw.println("  AmbientLightSensorHub State:");
+        pw.println("    mLightSensorRate=" + mLightSensorRate);
+        pw.println("    mMaxReportLatency=" + mMaxReportLatency
+                + " (fifo=" + (mLightSensor != null ? mLightSensor.getFifoMaxEventCount() : 0)
+                + ")");
+        synchronized (this) {
+            pw.println("    mScreenOn=" + mScreenOn);
+            pw.println("    mSensorEnabled=" + mSensorEnabled);
+            pw.println("    observers=" + mObservers.length);
+        }
+        pw.println("    mEventCount=" + mEventCount);
+        pw.println("    mLastLux=" + mLastLux);
+    }
+}
@@ -15,69 +15,61 @@
  */
 package org.lineageos.platform.internal.display;
 
-import android.content.Context;
-import android.hardware.Sensor;
-import android.hardware.SensorEvent;
-import android.hardware.SensorEventListener;
-import android.hardware.SensorManager;
 import android.os.Handler;
 import android.os.Looper;
 import android.os.Message;
+import android.os.SystemClock;
 import android.util.Log;
 
+import org.lineageos.internal.util.AmbientLuxThreshold;
+
 import java.io.PrintWriter;
-import java.util.Iterator;
-import java.util.LinkedList;
 
+/**
+ * Smooths the readings of the ambient light sensor over a window and
+ * reports transitions across a threshold. Readings come from the shared
+ * {@link AmbientLightSensorHub}, which is subscribed to while a listener
+ * is set.
+ */
 public class AmbientLuxObserver {
 
     private static final String TAG = "AmbientLuxObserver";
     private static final boolean DEBUG = Log.isLoggable(TAG, Log.DEBUG);
 
-    private final Sensor mLightSensor;
-    private final SensorManager mSensorManager;
+    // Smallest number of samples the ring buffer can hold, in case the
+    // sensor reports faster than requested
+    private static final int MIN_RING_BUFFER_CAPACITY = 16;
+
+    private final AmbientLightSensorHub mHub;
 
-    private final float mThresholdLux;
-    private final float mHysteresisLux;
     private final int mThresholdDuration;
 
     private boolean mLightSensorEnabled = false;
-    private int mLightSensorRate;
-
-    private float mAmbientLux = 0.0f;
-
-    private static final int LOW = 0;
-    private static final int HIGH = 1;
-
-    private int mState = LOW;
 
     private final AmbientLuxHandler mLuxHandler;
 
     private TransitionListener mCallback;
 
-    private final TimedMovingAverageRingBuffer mRingBuffer;
+    private final AmbientLuxThreshold mThreshold;
 
     public interface TransitionListener {
         public void onTransition(int state, float ambientLux);
     }
 
-    public AmbientLuxObserver(Context context, Looper looper,
+    public AmbientLuxObserver(AmbientLightSensorHub hub, Looper looper,
             float thresholdLux, float hysteresisLux, int thresholdDuration) {
+        mHub = hub;
         mLuxHandler = new AmbientLuxHandler(looper);
-        mThresholdLux = thresholdLux;
-        mHysteresisLux = hysteresisLux;
         mThresholdDuration = thresholdDuration;
-        mRingBuffer = new TimedMovingAverageRingBuffer(thresholdDuration);
 
-        mSensorManager = (SensorManager) context.getSystemService(Context.SENSOR_SERVICE);
-        mLightSensor = mSensorManager.getDefaultSensor(Sensor.TYPE_LIGHT);
-        mLightSensorRate = context.getResources().getInteger(
-                com.android.internal.R.integer.config_autoBrightnessLightSensorRate);
+        // Room for twice the expected number of samples in the window
+        mThreshold = new AmbientLuxThreshold(thresholdLux, hysteresisLux, thresholdDuration,
+                Math.max(MIN_RING_BUFFER_CAPACITY,
+                        2 * thresholdDuration / Math.max(1, hub.getSensorRate()) + 1));
     }
 
     private class AmbientLuxHandler extends Handler {
 
-        private static final int MSG_UPDATE_LUX = 0;
         private static final int MSG_TRANSITION = 1;
 
         AmbientLuxHandler(Looper looper) {
@@ -86,43 +78,12 @@ public class AmbientLuxObserver {
 
         @Override
         public void handleMessage(Message msg) {
-            int direction = 0;
-            float lux = 0.0f;
-
-            synchronized (AmbientLuxObserver.this) {
-                switch (msg.what) {
-                    case MSG_UPDATE_LUX:
-                        lux = (Float) msg.obj;
-                        mRingBuffer.add(lux);
-
-                        // FALL THRU
-
-                    case MSG_TRANSITION:
-                        mAmbientLux = mRingBuffer.getAverage();
-
-                        if (DEBUG) {
-                            Log.d(TAG, "lux= " + lux + " mState=" + mState +
-                                       " mAmbientLux=" + mAmbientLux);
-                        }
-
-                        final float threshold = mState == HIGH
-                                ? mThresholdLux - mHysteresisLux : mThresholdLux;
-                        direction = mAmbientLux >= threshold ? HIGH : LOW;
-                        if (mState != direction) {
-                            mState = direction;
-                            if (mCallback != null) {
-                                mCallback.onTransition(mState, mAmbientLux);
-                            }
-                        }
-
-                        // check again in case we didn't get any
-                        // more readings because the sensor settled
-                        if (mRingBuffer.size() > 1) {
-                            removeMessages(MSG_TRANSITION);
-                            sendEmptyMessageDelayed(MSG_TRANSITION, mThresholdDuration / 2);
-                        }
-                        break;
-                }
+            switch (msg.what) {
+                case MSG_TRANSITION:
+                    synchronized (AmbientLuxObserver.this) {
+                        updateState(mThreshold.evaluate(SystemClock.uptimeMillis()), 0.0f);
+                    }
+                    break;
             }
         }
 
@@ -131,23 +92,38 @@ public class AmbientLuxObserver {
         }
     };
 
-    private final SensorEventListener mListener = new SensorEventListener() {
-        @Override
-        public void onSensorChanged(SensorEvent event) {
-            if (mLightSensorEnabled) {
-                Message.obtain(mLuxHandler, AmbientLuxHandler.MSG_UPDATE_LUX,
-                               event.values[0]).sendToTarget();
-            }
+    /**
+     * Called by the hub for every sensor reading
+     */
+    synchronized void onLuxChanged(long now, float lux) {
+        if (!mLightSensorEnabled) {
+            return;
         }
+        updateState(mThreshold.add(now, lux), lux);
+    }
 
-        @Override
-        public void onAccuracyChanged(Sensor sensor, int accuracy) {
-            // Not used.
+    private void updateState(boolean changed, float lux) {
+        if (DEBUG) {
+            Log.d(TAG, "lux= " + lux + " mState=" + mThreshold.getState() +
+                       " mAmbientLux=" + mThreshold.getAmbientLux());
+        }
+
+        if (changed && mCallback != null) {
+            mCallback.onTransition(mThreshold.getState(), mThreshold.getAmbientLux());
         }
-    };
+
+        // check again in case we didn't get any
+        // more readings because the sensor settled
+        final long recheckDelay = mThreshold.getRecheckDelay();
+        if (recheckDelay >= 0) {
+            mLuxHandler.removeMessages(AmbientLuxHandler.MSG_TRANSITION);
+            mLuxHandler.sendEmptyMessageDelayed(AmbientLuxHandler.MSG_TRANSITION,
+                    recheckDelay);
+        }
+    }
 
     public synchronized int getState() {
-        return mState;
+        return mThreshold.getState();
     }
 
     public synchronized void setTransitionListener(TransitionListener callback) {
@@ -158,102 +134,21 @@ public class AmbientLuxObserver {
     private void enableLightSensor(boolean enable) {
         if (enable && !mLightSensorEnabled) {
             mLightSensorEnabled = true;
-            mSensorManager.registerListener(mListener, mLightSensor,
-                    mLightSensorRate * 1000, mLuxHandler);
+            mHub.subscribe(this);
         } else if (!enable && mLightSensorEnabled) {
-            mSensorManager.unregisterListener(mListener);
+            mHub.unsubscribe(this);
             mLuxHandler.clear();
-            mAmbientLux = 0.0f;
-            mState = LOW;
             mLightSensorEnabled = false;
-            mRingBuffer.clear();
+            mThreshold.reset();
         }
     }
 
-    public void dump(PrintWriter pw) {
+    public synchronized void dump(PrintWriter pw) {
         pw.println();
         pw.println("  AmbientLuxObserver State:");
         pw.println("    mLightSensorEnabled=" + mLightSensorEnabled);
-        pw.println("    mState=" + mState);
-        pw.println("    mAmbientLux=" + mAmbientLux);
-        pw.println("    mRingBuffer=" + mRingBuffer.toString());
-    }
-
-    /**
-     * Calculates a simple moving average based on a fixed
-     * duration sliding window. This is useful for dampening
-     * erratic sensors and rolling thru transitional periods
-     * smoothly.
-     */
-    private static class TimedMovingAverageRingBuffer {
-
-        private final LinkedList<Sample> mRing = new LinkedList<Sample>();
-
-        private final int mPeriod;
-
-        private float mTotal = 0.0f;
-
-        private static class Sample {
-            public final long mTimestamp;
-            public final float mValue;
-            public Sample (long timestamp, float value) {
-                mTimestamp = timestamp;
-                mValue = value;
-            }
-
-            @Override
-            public String toString() {
-                return "(" + mValue + ", " + mTimestamp + ")";
-            }
-        }
-
-        public TimedMovingAverageRingBuffer(int period) {
-            mPeriod = period;
-        }
-
-        public synchronized void add(float sample) {
-            expire();
-            if (sample == 0.0f && mRing.size() == 0) {
-                return;
-            }
-            mRing.offer(new Sample(System.currentTimeMillis(), sample));
-            mTotal += sample;
-        }
-
-        public synchronized int size() {
-            return mRing.size();
-        }
-
-        public synchronized float getAverage() {
-            expire();
-            return mRing.size() == 0 ? 0.0f : (mTotal / mRing.size());
-        }
-
-        public synchronized void clear() {
-            mRing.clear();
-            mTotal = 0.0f;
-        }
-
-        private void expire() {
-            long now = System.currentTimeMillis();
-            while (mRing.size() > 1 &&
-                    ((now - mRing.peek().mTimestamp) > mPeriod)) {
-                mTotal -= mRing.pop().mValue;
-            }
-        }
-
-        @Override
-        public synchronized String toString() {
-            expire();
-            StringBuilder sb = new StringBuilder();
-            for (Iterator<Sample> i = mRing.iterator(); i.hasNext();) {
-                if (sb.length() > 0) {
-                    sb.append(", ");
-                }
-                sb.append(i.next());
-            }
-            return "average=" + getAverage() + " length=" + mRing.size() +
-                   " mRing=[" + sb.toString() + "]";
-        }
+        pw.println("    mThresholdDuration=" + mThresholdDuration);
+        pw.println("    mAmbientLux=" + mThreshold.getAmbientLux());
+        pw.println("    mThreshold=" + mThreshold.toString(SystemClock.uptimeMillis()));
     }
 }
@@ -27,6 +27,7 @@ import android.util.Range;
 import android.util.Slog;
 import android.view.animation.AccelerateDecelerateInterpolator;
 
+import org.lineageos.internal.util.HardwareWriteLimiter;
 import org.lineageos.platform.internal.display.TwilightTracker.TwilightState;
 
 import java.io.PrintWriter;
@@ -41,6 +42,9 @@ import static lineageos.hardware.LiveDisplayManager.MODE_AUTO;
 import static lineageos.hardware.LiveDisplayManager.MODE_DAY;
 import static lineageos.hardware.LiveDisplayManager.MODE_NIGHT;
 import static lineageos.hardware.LiveDisplayManager.MODE_OFF;
+import static org.lineageos.platform.internal.display.LiveDisplayService.DISPLAY_CHANGED;
+import static org.lineageos.platform.internal.display.LiveDisplayService.MODE_CHANGED;
+import static org.lineageos.platform.internal.display.LiveDisplayService.TWILIGHT_CHANGED;
 
 public class ColorTemperatureController extends LiveDisplayFeature {
 
@@ -62,6 +66,18 @@ public class ColorTemperatureController extends LiveDisplayFeature {
     private AccelerateDecelerateInterpolator mInterpolator;
     private ValueAnimator mAnimator;
 
+    // Reused for every temperature update, only touched with the lock held
+    private final float[] mTemperatureRgb = new float[3];
+
+    private final HardwareWriteLimiter mColorBalanceWriter;
+    private final int[] mColorBalanceValue = new int[1];
+
+    private final LiveDisplayStats.Timer mHalGetColorBalanceTimer =
+            mStats.getTimer("hal.getColorBalance");
+    private final LiveDisplayStats.Timer mHalSetColorBalanceTimer =
+            mStats.getTimer("hal.setColorBalance");
+    private final LiveDisplayStats.Timer mFrameTimer = mStats.getTimer("anim.colorBalance.frame");
+
     private final LineageHardwareManager mHardware;
 
     private static final long TWILIGHT_ADJUSTMENT_TIME = DateUtils.HOUR_IN_MILLIS / 2;
@@ -83,6 +99,9 @@ public class ColorTemperatureController extends LiveDisplayFeature {
 
         mUseTemperatureAdjustment = !mNightDisplayAvailable &&
                 (mUseColorBalance || mDisplayHardware.hasColorAdjustment());
+        if (mUseTemperatureAdjustment && mUseColorBalance) {
+            mStats.addColorPath(LiveDisplayStats.COLOR_PATH_BALANCE);
+        }
 
         mDefaultDayTemperature = mContext.getResources().getInteger(
                 org.lineageos.platform.internal.R.integer.config_dayColorTemperature);
@@ -101,6 +120,19 @@ public class ColorTemperatureController extends LiveDisplayFeature {
                 mColorTemperatureRange.getUpper());
 
         mInterpolator = new AccelerateDecelerateInterpolator();
+
+        mColorBalanceWriter = new HardwareWriteLimiter("colorBalance", 1,
+                mContext.getResources().getInteger(
+                        org.lineageos.platform.internal.R.integer.config_liveDisplayMinWriteInterval),
+                new HardwareWriteLimiter.Writer() {
+                    @Override
+                    public boolean write(int[] values) {
+                        final long start = mHalSetColorBalanceTimer.start();
+                        final boolean result = mHardware.setColorBalance(values[0]);
+                        mHalSetColorBalanceTimer.stop(start);
+                        return result;
+                    }
+                });
     }
 
     @Override
@@ -128,6 +160,12 @@ public class ColorTemperatureController extends LiveDisplayFeature {
         return mUseTemperatureAdjustment;
     }
 
+    @Override
+    protected int getInterestMask() {
+        // low power mode doesn't change the temperature
+        return MODE_CHANGED | DISPLAY_CHANGED | TWILIGHT_CHANGED;
+    }
+
     @Override
     protected void onUpdate() {
         updateColorTemperature();
@@ -168,6 +206,9 @@ public class ColorTemperatureController extends LiveDisplayFeature {
         pw.println("  ColorTemperatureController State:");
         pw.println("    mColorTemperature=" + mColorTemperature);
         pw.println("    isTransitioning=" + isTransitioning());
+        if (mUseColorBalance) {
+            mColorBalanceWriter.dump(pw);
+        }
     }
 
     private final Runnable mTransitionRunnable = new Runnable() {
@@ -217,9 +258,13 @@ public class ColorTemperatureController extends LiveDisplayFeature {
     private synchronized void animateColorBalance(int balance) {
 
         // always start with the current values in the hardware
+        final long start = mHalGetColorBalanceTimer.start();
         int current = mHardware.getColorBalance();
+        mHalGetColorBalanceTimer.stop(start);
 
         if (current == balance) {
+            mStats.noteColorSettled(LiveDisplayStats.COLOR_PATH_BALANCE);
+            mDisplayHardware.noteColorBalanceApplied(getMode(), balance);
             return;
         }
 
@@ -236,6 +281,9 @@ public class ColorTemperatureController extends LiveDisplayFeature {
             mAnimator.removeAllUpdateListeners();
         }
 
+        mColorBalanceValue[0] = current;
+        mColorBalanceWriter.seed(mColorBalanceValue);
+
         mAnimator = ValueAnimator.ofInt(current, balance);
         mAnimator.setDuration(duration);
         mAnimator.setInterpolator(mInterpolator);
@@ -244,8 +292,16 @@ public class ColorTemperatureController extends LiveDisplayFeature {
             public void onAnimationUpdate(final ValueAnimator animation) {
                 synchronized (ColorTemperatureController.this) {
                     if (isScreenOn()) {
-                        int value = (int) animation.getAnimatedValue();
-                        mHardware.setColorBalance(value);
+                        final long start = mFrameTimer.start();
+                        final boolean last = animation.getAnimatedFraction() >= 1.0f;
+                        mColorBalanceValue[0] = (int) animation.getAnimatedValue();
+                        mColorBalanceWriter.update(mColorBalanceValue, last);
+                        mFrameTimer.stop(start);
+                        if (last) {
+                            mStats.noteColorSettled(LiveDisplayStats.COLOR_PATH_BALANCE);
+                            mDisplayHardware.noteColorBalanceApplied(getMode(),
+                                    mColorBalanceValue[0]);
+                        }
                     }
                 }
             }
@@ -266,6 +322,7 @@ public class ColorTemperatureController extends LiveDisplayFeature {
     private synchronized void setDisplayTemperature(int temperature) {
         if (!mColorTemperatureRange.contains(temperature)) {
             Slog.e(TAG, "Color temperature out of range: " + temperature);
+            mStats.noteColorSettled(LiveDisplayStats.COLOR_PATH_BALANCE);
             return;
         }
 
@@ -278,8 +335,8 @@ public class ColorTemperatureController extends LiveDisplayFeature {
             return;
         }
 
-        final float[] rgb = ColorUtils.temperatureToRGB(temperature);
-        if (mDisplayHardware.setAdditionalAdjustment(rgb)) {
+        ColorUtils.temperatureToRGB(temperature, mTemperatureRgb);
+        if (mDisplayHardware.setAdditionalAdjustment(mTemperatureRgb)) {
             if (DEBUG) {
                 Slog.d(TAG, "Adjust display temperature to " + temperature + "K");
             }
@@ -28,8 +28,12 @@ import android.os.RemoteException;
 import android.os.ServiceManager;
 import android.util.MathUtils;
 import android.util.Slog;
+import android.util.SparseArray;
+import android.util.SparseIntArray;
 import android.view.animation.LinearInterpolator;
 
+import org.lineageos.internal.util.HardwareWriteLimiter;
+
 import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -39,6 +43,9 @@ import lineageos.hardware.LineageHardwareManager;
 import lineageos.hardware.LiveDisplayManager;
 import lineageos.providers.LineageSettings;
 
+import static org.lineageos.platform.internal.display.LiveDisplayService.DISPLAY_CHANGED;
+import static org.lineageos.platform.internal.display.LiveDisplayService.LOW_POWER_CHANGED;
+
 public class DisplayHardwareController extends LiveDisplayFeature {
 
     private final LineageHardwareManager mHardware;
@@ -60,8 +67,32 @@ public class DisplayHardwareController extends LiveDisplayFeature {
     private final float[] mAdditionalAdjustment = getDefaultAdjustment();
     private final float[] mColorAdjustment = getDefaultAdjustment();
 
+    // composed result of the holders above, as last sent to the animator
+    private final float[] mColorAdjustmentTarget = getDefaultAdjustment();
+    private boolean mColorAdjustmentPending;
+    private int mColorAdjustmentPushes;
+    private int mColorAdjustmentSkips;
+
     private ValueAnimator mAnimator;
 
+    private final HardwareWriteLimiter mCalibrationWriter;
+    private final int[] mCalibration = new int[3];
+
+    private final LiveDisplayStats.Timer mHalSetTimer = mStats.getTimer("hal.set");
+    private final LiveDisplayStats.Timer mHalGetCalibrationTimer =
+            mStats.getTimer("hal.getDisplayColorCalibration");
+    private final LiveDisplayStats.Timer mHalSetCalibrationTimer =
+            mStats.getTimer("hal.setDisplayColorCalibration");
+    private final LiveDisplayStats.Timer mScreenRefreshTimer =
+            mStats.getTimer("surfaceflinger.refresh");
+    private final LiveDisplayStats.Timer mFrameTimer = mStats.getTimer("anim.calibration.frame");
+    private final LiveDisplayStats.Timer mHalSetColorBalanceTimer =
+            mStats.getTimer("hal.setColorBalance");
+
+    // Hardware values last settled on in each mode, put back as soon as the screen comes on
+    private final SparseArray<int[]> mLastCalibration = new SparseArray<int[]>();
+    private final SparseIntArray mLastColorBalance = new SparseIntArray();
+
     private final int mMaxColor;
 
     // settings uris
@@ -105,11 +136,30 @@ public class DisplayHardwareController extends LiveDisplayFeature {
                 .isSupported(LineageHardwareManager.FEATURE_READING_ENHANCEMENT);
 
         if (mUseColorAdjustment) {
+            mStats.addColorPath(LiveDisplayStats.COLOR_PATH_CALIBRATION);
             mMaxColor = mHardware.getDisplayColorCalibrationMax();
             copyColors(getColorAdjustment(), mColorAdjustment);
         } else {
             mMaxColor = 0;
         }
+
+        mCalibrationWriter = new HardwareWriteLimiter("calibration", 3,
+                mContext.getResources().getInteger(
+                        org.lineageos.platform.internal.R.integer.config_liveDisplayMinWriteInterval),
+                new HardwareWriteLimiter.Writer() {
+                    @Override
+                    public boolean write(int[] values) {
+                        long start = mHalSetCalibrationTimer.start();
+                        // values is our frame buffer, the HAL gets its own copy
+                        final boolean result = mHardware.setDisplayColorCalibration(
+                                Arrays.copyOf(values, values.length));
+                        mHalSetCalibrationTimer.stop(start);
+                        start = mScreenRefreshTimer.start();
+                        screenRefresh();
+                        mScreenRefreshTimer.stop(start);
+                        return result;
+                    }
+                });
     }
 
     @Override
@@ -188,6 +238,12 @@ public class DisplayHardwareController extends LiveDisplayFeature {
         }
     }
 
+    @Override
+    protected int getInterestMask() {
+        // none of the hardware features depend on the mode
+        return DISPLAY_CHANGED | LOW_POWER_CHANGED;
+    }
+
     @Override
     protected void onUpdate() {
         updateHardware();
@@ -221,7 +277,23 @@ public class DisplayHardwareController extends LiveDisplayFeature {
         pw.println("    mCABC=" + isCABCEnabled());
         pw.println("    mColorAdjustment=" + Arrays.toString(mColorAdjustment));
         pw.println("    mAdditionalAdjustment=" + Arrays.toString(mAdditionalAdjustment));
+        pw.println("    mColorAdjustmentTarget=" + Arrays.toString(mColorAdjustmentTarget));
+        pw.println("    mColorAdjustmentPushes=" + mColorAdjustmentPushes);
+        pw.println("    mColorAdjustmentSkips=" + mColorAdjustmentSkips);
+        synchronized (this) {
+            for (int i = 0; i < mLastCalibration.size(); i++) {
+                pw.println("    lastCalibration[mode=" + mLastCalibration.keyAt(i) + "]="
+                        + Arrays.toString(mLastCalibration.valueAt(i)));
+            }
+            for (int i = 0; i < mLastColorBalance.size(); i++) {
+                pw.println("    lastColorBalance[mode=" + mLastColorBalance.keyAt(i) + "]="
+                        + mLastColorBalance.valueAt(i));
+            }
+        }
         pw.println("    hardware setting=" + Arrays.toString(mHardware.getDisplayColorCalibration()));
+        if (mUseColorAdjustment) {
+            mCalibrationWriter.dump(pw);
+        }
     }
 
     /**
@@ -231,7 +303,9 @@ public class DisplayHardwareController extends LiveDisplayFeature {
         if (!mUseAutoContrast) {
             return;
         }
+        final long start = mHalSetTimer.start();
         mHardware.set(LineageHardwareManager.FEATURE_AUTO_CONTRAST, isAutoContrastEnabled());
+        mHalSetTimer.stop(start);
     }
 
     /**
@@ -241,8 +315,10 @@ public class DisplayHardwareController extends LiveDisplayFeature {
         if (!mUseColorEnhancement) {
             return;
         }
+        final long start = mHalSetTimer.start();
         mHardware.set(LineageHardwareManager.FEATURE_COLOR_ENHANCEMENT,
                 (!isLowPowerMode() || mDefaultColorEnhancement) && isColorEnhancementEnabled());
+        mHalSetTimer.stop(start);
     }
 
     /**
@@ -252,11 +328,39 @@ public class DisplayHardwareController extends LiveDisplayFeature {
         if (!mUseCABC) {
             return;
         }
+        final long start = mHalSetTimer.start();
         mHardware.set(LineageHardwareManager.FEATURE_ADAPTIVE_BACKLIGHT, isCABCEnabled());
+        mHalSetTimer.stop(start);
     }
 
+    /**
+     * Schedule the color adjustment to be recomposed. Every contribution which
+     * changes before the handler gets to it is folded into a single push.
+     */
     private synchronized void updateColorAdjustment() {
-        if (!mUseColorAdjustment) {
+        if (!mUseColorAdjustment || mColorAdjustmentPending) {
+            return;
+        }
+        mColorAdjustmentPending = true;
+        mHandler.post(mComposeColorAdjustment);
+    }
+
+    private final Runnable mComposeColorAdjustment = new Runnable() {
+        @Override
+        public void run() {
+            composeColorAdjustment();
+        }
+    };
+
+    /**
+     * Combine the user's color adjustment with the additional adjustment
+     * from night mode and push the result once, if it changed.
+     */
+    private synchronized void composeColorAdjustment() {
+        mColorAdjustmentPending = false;
+
+        if (!isScreenOn()) {
+            // recomposed when the screen comes back on
             return;
         }
 
@@ -268,21 +372,46 @@ public class DisplayHardwareController extends LiveDisplayFeature {
         rgb[2] *= mAdditionalAdjustment[2];
 
         if (DEBUG) {
-            Slog.d(TAG, "updateColorAdjustment: " + Arrays.toString(rgb));
+            Slog.d(TAG, "composeColorAdjustment: " + Arrays.toString(rgb));
         }
 
-        if (validateColors(rgb)) {
-            animateDisplayColor(rgb);
+        if (!validateColors(rgb)) {
+            // Nothing to move to, the hardware stays where it is
+            mStats.noteColorSettled(LiveDisplayStats.COLOR_PATH_CALIBRATION);
+            return;
+        }
+
+        // Don't restart an animation which is already heading there
+        if (mAnimator != null && mAnimator.isRunning()
+                && Arrays.equals(rgb, mColorAdjustmentTarget)) {
+            mColorAdjustmentSkips++;
+            return;
+        }
+
+        copyColors(rgb, mColorAdjustmentTarget);
+        if (animateDisplayColor(rgb)) {
+            mColorAdjustmentPushes++;
+        } else {
+            mColorAdjustmentSkips++;
+            mStats.noteColorSettled(LiveDisplayStats.COLOR_PATH_CALIBRATION);
+            mCalibration[0] = (int) (rgb[0] * mMaxColor);
+            mCalibration[1] = (int) (rgb[1] * mMaxColor);
+            mCalibration[2] = (int) (rgb[2] * mMaxColor);
+            noteCalibrationApplied(mCalibration);
         }
     }
 
     /**
      * Smoothly animate the current display colors to the new value.
+     *
+     * @return false if the hardware is already there
      */
-    private synchronized void animateDisplayColor(float[] targetColors) {
+    private synchronized boolean animateDisplayColor(float[] targetColors) {
 
         // always start with the current values in the hardware
+        final long start = mHalGetCalibrationTimer.start();
         int[] currentInts = mHardware.getDisplayColorCalibration();
+        mHalGetCalibrationTimer.stop(start);
         float[] currentColors = new float[] {
                 (float)currentInts[0] / (float)mMaxColor,
                 (float)currentInts[1] / (float)mMaxColor,
@@ -291,9 +420,14 @@ public class DisplayHardwareController extends LiveDisplayFeature {
         if (currentColors[0] == targetColors[0] &&
                 currentColors[1] == targetColors[1] &&
                 currentColors[2] == targetColors[2]) {
-            return;
+            return false;
         }
 
+        mCalibration[0] = currentInts[0];
+        mCalibration[1] = currentInts[1];
+        mCalibration[2] = currentInts[2];
+        mCalibrationWriter.seed(mCalibration);
+
         // max 500 ms, scaled vs. the largest delta
         long duration = (long)(750 * (Math.max(Math.max(
                 Math.abs(currentColors[0] - targetColors[0]),
@@ -319,18 +453,77 @@ public class DisplayHardwareController extends LiveDisplayFeature {
             public void onAnimationUpdate(final ValueAnimator animation) {
                 synchronized (DisplayHardwareController.this) {
                     if (isScreenOn()) {
+                        final long start = mFrameTimer.start();
+                        final boolean last = animation.getAnimatedFraction() >= 1.0f;
                         float[] value = (float[]) animation.getAnimatedValue();
-                        mHardware.setDisplayColorCalibration(new int[] {
-                                (int) (value[0] * mMaxColor),
-                                (int) (value[1] * mMaxColor),
-                                (int) (value[2] * mMaxColor)
-                        });
-                        screenRefresh();
+                        mCalibration[0] = (int) (value[0] * mMaxColor);
+                        mCalibration[1] = (int) (value[1] * mMaxColor);
+                        mCalibration[2] = (int) (value[2] * mMaxColor);
+                        mCalibrationWriter.update(mCalibration, last);
+                        mFrameTimer.stop(start);
+                        if (last) {
+                            mStats.noteColorSettled(LiveDisplayStats.COLOR_PATH_CALIBRATION);
+                            noteCalibrationApplied(mCalibration);
+                        }
                     }
                 }
             }
         });
         mAnimator.start();
+        return true;
+    }
+
+    private void noteCalibrationApplied(int[] calibration) {
+        int[] last = mLastCalibration.get(getMode());
+        if (last == null) {
+            last = new int[3];
+            mLastCalibration.put(getMode(), last);
+        }
+        System.arraycopy(calibration, 0, last, 0, 3);
+    }
+
+    /**
+     * Remember the color balance the ColorTemperatureController settled on
+     * in the given mode.
+     */
+    synchronized void noteColorBalanceApplied(int mode, int balance) {
+        mLastColorBalance.put(mode, balance);
+    }
+
+    /**
+     * Put back the hardware values last settled on in the given mode, without
+     * reading settings or animating. Called as soon as the screen comes on, so
+     * the first frame has the right colors; the features recompute afterwards
+     * and animate from here if anything changed while the screen was off.
+     *
+     * @return true if anything was written
+     */
+    synchronized boolean restoreLastApplied(int mode) {
+        boolean restored = false;
+
+        final int[] calibration = mUseColorAdjustment ? mLastCalibration.get(mode) : null;
+        if (calibration != null) {
+            // Keep the write limiter in step with what the hardware now holds
+            mCalibrationWriter.seed(calibration);
+            final long start = mHalSetCalibrationTimer.start();
+            mHardware.setDisplayColorCalibration(Arrays.copyOf(calibration, calibration.length));
+            mHalSetCalibrationTimer.stop(start);
+            screenRefresh();
+            restored = true;
+        }
+
+        final int index = mLastColorBalance.indexOfKey(mode);
+        if (index >= 0) {
+            final long start = mHalSetColorBalanceTimer.start();
+            mHardware.setColorBalance(mLastColorBalance.valueAt(index));
+            mHalSetColorBalanceTimer.stop(start);
+            restored = true;
+        }
+
+        if (DEBUG) {
+            Slog.d(TAG, "restoreLastApplied mode=" + mode + " restored=" + restored);
+        }
+        return restored;
     }
 
     /**
@@ -35,6 +35,7 @@ import lineageos.providers.LineageSettings;
 
 import static org.lineageos.platform.internal.display.LiveDisplayService.ALL_CHANGED;
 import static org.lineageos.platform.internal.display.LiveDisplayService.DISPLAY_CHANGED;
+import static org.lineageos.platform.internal.display.LiveDisplayService.LOW_POWER_CHANGED;
 import static org.lineageos.platform.internal.display.LiveDisplayService.MODE_CHANGED;
 import static org.lineageos.platform.internal.display.LiveDisplayService.TWILIGHT_CHANGED;
 
@@ -50,10 +51,22 @@ public abstract class LiveDisplayFeature {
     private SettingsObserver mSettingsObserver;
     private State mState;
 
+    protected final LiveDisplayStats mStats = LiveDisplayStats.getInstance();
+    private final LiveDisplayStats.Timer mUpdateTimer;
+    private final LiveDisplayStats.Timer mSettingsTimer;
+    private final LiveDisplayStats.Timer mScreenStateTimer;
+    private final LiveDisplayStats.Timer mTwilightTimer;
+
     public LiveDisplayFeature(Context context, Handler handler) {
         mContext = context;
         mHandler = handler;
         mNightDisplayAvailable = ColorDisplayManager.isNightDisplayAvailable(mContext);
+
+        final String name = getClass().getSimpleName();
+        mUpdateTimer = mStats.getTimer(name + ".onUpdate");
+        mSettingsTimer = mStats.getTimer(name + ".onSettingsChanged");
+        mScreenStateTimer = mStats.getTimer(name + ".onScreenStateChanged");
+        mTwilightTimer = mStats.getTimer(name + ".onTwilightUpdated");
     }
 
     public abstract void onStart();
@@ -66,22 +79,45 @@ public abstract class LiveDisplayFeature {
 
     protected abstract void onUpdate();
 
+    /**
+     * Returns the changes this feature wants to hear about, as a combination
+     * of the LiveDisplayService *_CHANGED flags. Mode and low power changes
+     * both end up in {@link #onUpdate}. Every feature is updated when
+     * everything changes, regardless of the mask.
+     */
+    protected int getInterestMask() {
+        return ALL_CHANGED;
+    }
+
     void update(final int flags, final State state) {
         mState = state;
+        long start;
         if ((flags & DISPLAY_CHANGED) != 0) {
+            start = mScreenStateTimer.start();
             onScreenStateChanged();
+            mScreenStateTimer.stop(start);
         }
         if (((flags & TWILIGHT_CHANGED) != 0) && mState.mTwilight != null) {
+            start = mTwilightTimer.start();
             onTwilightUpdated();
+            mTwilightTimer.stop(start);
         }
-        if ((flags & MODE_CHANGED) != 0) {
+        if ((flags & (MODE_CHANGED | LOW_POWER_CHANGED)) != 0) {
+            start = mUpdateTimer.start();
             onUpdate();
+            mUpdateTimer.stop(start);
         }
         if (flags == ALL_CHANGED) {
-            onSettingsChanged(null);
+            dispatchSettingsChanged(null);
         }
     }
 
+    private void dispatchSettingsChanged(Uri uri) {
+        final long start = mSettingsTimer.start();
+        onSettingsChanged(uri);
+        mSettingsTimer.stop(start);
+    }
+
     void start() {
         if (mSettingsObserver == null) {
             mSettingsObserver = new SettingsObserver(mHandler);
@@ -173,12 +209,12 @@ public abstract class LiveDisplayFeature {
 
         @Override
         protected void update() {
-            onSettingsChanged(null);
+            dispatchSettingsChanged(null);
         }
 
         @Override
         public void onChange(boolean selfChange, Uri uri) {
-            onSettingsChanged(uri);
+            dispatchSettingsChanged(uri);
         }
     }
 
@@ -31,6 +31,7 @@ import android.os.PowerManagerInternal;
 import android.os.PowerSaveState;
 import android.os.Process;
 import android.os.UserHandle;
+import android.view.Choreographer;
 import android.view.Display;
 
 import com.android.server.LocalServices;
@@ -79,6 +80,7 @@ public class LiveDisplayService extends LineageSystemService {
     private DisplayManager mDisplayManager;
     private ModeObserver mModeObserver;
     private final TwilightTracker mTwilightTracker;
+    private AmbientLightSensorHub mLightSensorHub;
 
     private boolean mAwaitingNudge = true;
     private boolean mSunset = false;
@@ -95,8 +97,21 @@ public class LiveDisplayService extends LineageSystemService {
     static int MODE_CHANGED = 1;
     static int DISPLAY_CHANGED = 2;
     static int TWILIGHT_CHANGED = 4;
+    static int LOW_POWER_CHANGED = 8;
     static int ALL_CHANGED = 255;
 
+    // How long to wait for the first frame after screen on before updating the features anyway
+    private static final long SCREEN_ON_UPDATE_TIMEOUT_MS = 100;
+
+    // Only touched on the handler thread
+    private boolean mScreenOnUpdatePending = false;
+
+    // Changes waiting for the next update pass, guarded by mUpdateLock
+    private final Object mUpdateLock = new Object();
+    private int mPendingFlags = 0;
+    private int mUpdatePasses = 0;
+    private int mCoalescedUpdates = 0;
+
     // PowerManager ServiceType to use when we're only
     // interested in gleaning global battery saver state.
     private static final int SERVICE_TYPE_DUMMY = ServiceType.LOCATION;
@@ -107,6 +122,15 @@ public class LiveDisplayService extends LineageSystemService {
         public int mMode = -1;
         public TwilightState mTwilight = null;
 
+        State copy() {
+            final State state = new State();
+            state.mLowPowerMode = mLowPowerMode;
+            state.mScreenOn = mScreenOn;
+            state.mMode = mMode;
+            state.mTwilight = mTwilight;
+            return state;
+        }
+
         @Override
         public String toString() {
             return String.format(Locale.US,
@@ -158,7 +182,9 @@ public class LiveDisplayService extends LineageSystemService {
             mCTC = new ColorTemperatureController(mContext, mHandler, mDHC);
             mFeatures.add(mCTC);
 
-            mOMC = new OutdoorModeController(mContext, mHandler);
+            mLightSensorHub = new AmbientLightSensorHub(mContext, mHandler);
+
+            mOMC = new OutdoorModeController(mContext, mHandler, mLightSensorHub);
             mFeatures.add(mOMC);
 
             mPAC = new PictureAdjustmentController(mContext, mHandler);
@@ -192,6 +218,7 @@ public class LiveDisplayService extends LineageSystemService {
             mDisplayManager.registerDisplayListener(mDisplayListener, null);
             mState.mScreenOn = mDisplayManager.getDisplay(
                     Display.DEFAULT_DISPLAY).getState() == Display.STATE_ON;
+            mLightSensorHub.setScreenOn(mState.mScreenOn);
 
             PowerManagerInternal pmi = LocalServices.getService(PowerManagerInternal.class);
             pmi.registerLowPowerModeObserver(mLowPowerModeListener);
@@ -220,17 +247,43 @@ public class LiveDisplayService extends LineageSystemService {
         }
     }
 
+    /**
+     * Notify the features of a change. Changes arriving before the handler
+     * gets to them are merged into a single pass, and each feature only
+     * hears about the changes it declared an interest in.
+     */
     private void updateFeatures(final int flags) {
-        mHandler.post(new Runnable() {
-            @Override
-            public void run() {
-                for (int i = 0; i < mFeatures.size(); i++) {
-                    mFeatures.get(i).update(flags, mState);
-                }
+        synchronized (mUpdateLock) {
+            if (mPendingFlags != 0) {
+                mCoalescedUpdates++;
+            } else {
+                mHandler.post(mUpdateFeatures);
             }
-        });
+            mPendingFlags |= flags;
+        }
     }
 
+    private final Runnable mUpdateFeatures = new Runnable() {
+        @Override
+        public void run() {
+            final int flags;
+            synchronized (mUpdateLock) {
+                flags = mPendingFlags;
+                mPendingFlags = 0;
+                mUpdatePasses++;
+            }
+
+            // Every feature gets the same view of the state for this pass,
+            // including those which aren't interested in what changed
+            final State state = mState.copy();
+            for (int i = 0; i < mFeatures.size(); i++) {
+                final LiveDisplayFeature feature = mFeatures.get(i);
+                feature.update(flags == ALL_CHANGED
+                        ? flags : flags & feature.getInterestMask(), state);
+            }
+        }
+    };
+
     private final IBinder mBinder = new ILiveDisplayService.Stub() {
 
         @Override
@@ -361,15 +414,32 @@ public class LiveDisplayService extends LineageSystemService {
         public void dump(FileDescriptor fd, PrintWriter pw, String[] args) {
             mContext.enforceCallingOrSelfPermission(android.Manifest.permission.DUMP, TAG);
 
+            final LiveDisplayStats stats = LiveDisplayStats.getInstance();
+            for (String arg : args) {
+                if ("--checkin".equals(arg)) {
+                    stats.dumpCheckin(pw);
+                    return;
+                }
+            }
+
             pw.println();
             pw.println("LiveDisplay Service State:");
             pw.println("  mState=" + mState.toString());
             pw.println("  mConfig=" + mConfig.toString());
             pw.println("  mAwaitingNudge=" + mAwaitingNudge);
+            synchronized (mUpdateLock) {
+                pw.println("  mUpdatePasses=" + mUpdatePasses
+                        + " mCoalescedUpdates=" + mCoalescedUpdates);
+            }
 
             for (int i = 0; i < mFeatures.size(); i++) {
                 mFeatures.get(i).dump(pw);
             }
+            if (mLightSensorHub != null) {
+                mLightSensorHub.dump(pw);
+            }
+            mTwilightTracker.dump(pw);
+            stats.dump(pw);
         }
 
         @Override
@@ -396,13 +466,58 @@ public class LiveDisplayService extends LineageSystemService {
                 boolean screenOn = isScreenOn();
                 if (screenOn != mState.mScreenOn) {
                     mState.mScreenOn = screenOn;
-                    updateFeatures(DISPLAY_CHANGED);
+                    LiveDisplayStats.getInstance().noteScreenState(screenOn);
+                    mLightSensorHub.setScreenOn(screenOn);
+                    if (screenOn) {
+                        // restore the colors first, the features catch up after
+                        mHandler.postAtFrontOfQueue(mScreenOnRestore);
+                    } else {
+                        updateFeatures(DISPLAY_CHANGED);
+                    }
                 }
             }
         }
     };
 
 
+    /**
+     * Screen on fast path: put back the hardware state last applied in the
+     * current mode in one go, and only let the features re-evaluate, which
+     * means reading settings and maybe animating, once the first frame is out.
+     */
+    private final Runnable mScreenOnRestore = new Runnable() {
+        @Override
+        public void run() {
+            if (mDHC != null && mDHC.restoreLastApplied(mState.mMode)) {
+                LiveDisplayStats.getInstance().noteColorsRestored();
+            }
+            mScreenOnUpdatePending = true;
+            Choreographer.getInstance().postFrameCallback(mScreenOnFrameCallback);
+            mHandler.postDelayed(mScreenOnUpdate, SCREEN_ON_UPDATE_TIMEOUT_MS);
+        }
+    };
+
+    private final Choreographer.FrameCallback mScreenOnFrameCallback =
+            new Choreographer.FrameCallback() {
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            mScreenOnUpdate.run();
+        }
+    };
+
+    private final Runnable mScreenOnUpdate = new Runnable() {
+        @Override
+        public void run() {
+            if (!mScreenOnUpdatePending) {
+                return;
+            }
+            mScreenOnUpdatePending = false;
+            mHandler.removeCallbacks(mScreenOnUpdate);
+            Choreographer.getInstance().removeFrameCallback(mScreenOnFrameCallback);
+            updateFeatures(DISPLAY_CHANGED);
+        }
+    };
+
     // Display postprocessing can have power impact.
     private PowerManagerInternal.LowPowerModeListener mLowPowerModeListener =
             new PowerManagerInternal.LowPowerModeListener() {
@@ -411,7 +526,7 @@ public class LiveDisplayService extends LineageSystemService {
             final boolean lowPowerMode = state.globalBatterySaverEnabled;
             if (lowPowerMode != mState.mLowPowerMode) {
                 mState.mLowPowerMode = lowPowerMode;
-                updateFeatures(MODE_CHANGED);
+                updateFeatures(LOW_POWER_CHANGED);
             }
          }
 
@@ -0,0 +1,210 @@
+/*
+ * Copyright (C) 2020 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lineageos.platform.internal.display;
+
+import java.io.PrintWriter;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Timing counters for LiveDisplay: how long the features take to react to
+ * changes, how long each call into the hardware takes, how long animation
+ * frames take, and how long after the screen comes on the colors are right,
+ * both for the restore of the last applied values and for every color path
+ * reaching its target.
+ * A slow HAL shows up here as it stalls the LiveDisplay handler thread.
+ *
+ * Shown by dumpsys, or as comma separated values with --checkin.
+ *
+ * @hide
+ */
+final class LiveDisplayStats {
+
+    // Upper bounds of the histogram buckets, in microseconds. The last bucket is open.
+    private static final long[] BUCKETS_US = {
+            100, 250, 500, 1000, 2500, 5000, 10000, 25000, 50000, 100000, 250000, 500000
+    };
+
+    // Hardware paths the display colors are pushed through
+    static final String COLOR_PATH_CALIBRATION = "calibration";
+    static final String COLOR_PATH_BALANCE = "colorBalance";
+
+    private static LiveDisplayStats sInstance;
+
+    private final TreeMap<String, Timer> mTimers = new TreeMap<String, Timer>();
+
+    private final Timer mScreenOnTimer;
+    private long mScreenOnTime = -1;
+    private final Timer mScreenOnRestoreTimer;
+    private long mScreenOnRestoreTime = -1;
+
+    private final HashSet<String> mColorPaths = new HashSet<String>();
+    // Color paths which haven't reached their target since the screen came on
+    private final HashSet<String> mUnsettledColorPaths = new HashSet<String>();
+
+    static synchronized LiveDisplayStats getInstance() {
+        if (sInstance == null) {
+            sInstance = new LiveDisplayStats();
+        }
+        return sInstance;
+    }
+
+    private LiveDisplayStats() {
+        mScreenOnTimer = getTimer("screenOn.colorSettled");
+        mScreenOnRestoreTimer = getTimer("screenOn.restored");
+    }
+
+    /**
+     * A feature pushes colors through the given path. Once the screen comes
+     * on, the colors are only settled when every added path has reached its
+     * target.
+     */
+    synchronized void addColorPath(String path) {
+        mColorPaths.add(path);
+    }
+
+    /**
+     * Returns the timer with the given name, creating it if needed. Callers
+     * using the same name share the timer.
+     */
+    synchronized Timer getTimer(String name) {
+        Timer timer = mTimers.get(name);
+        if (timer == null) {
+            timer = new Timer(name);
+            mTimers.put(name, timer);
+        }
+        return timer;
+    }
+
+    /**
+     * The screen came on or went off. When it comes on, start measuring
+     * until the colors are right.
+     */
+    synchronized void noteScreenState(boolean screenOn) {
+        mScreenOnTime = screenOn ? mScreenOnTimer.start() : -1;
+        mScreenOnRestoreTime = mScreenOnTime;
+        mUnsettledColorPaths.clear();
+        if (screenOn) {
+            mUnsettledColorPaths.addAll(mColorPaths);
+        }
+    }
+
+    /**
+     * The last applied values were written back on the screen on fast path.
+     */
+    synchronized void noteColorsRestored() {
+        if (mScreenOnRestoreTime != -1) {
+            mScreenOnRestoreTimer.stop(mScreenOnRestoreTime);
+            mScreenOnRestoreTime = -1;
+        }
+    }
+
+    /**
+     * The colors pushed through the given path have reached their target.
+     * Recorded once the last unsettled path after the screen comes on gets
+     * there.
+     */
+    synchronized void noteColorSettled(String path) {
+        if (mScreenOnTime != -1 && mUnsettledColorPaths.remove(path)
+                && mUnsettledColorPaths.isEmpty()) {
+            mScreenOnTimer.stop(mScreenOnTime);
+            mScreenOnTime = -1;
+        }
+    }
+
+    synchronized void dump(PrintWriter pw) {
+        pw.println();
+        pw.println("LiveDisplay Timings (us):");
+        final StringBuilder sb = new StringBuilder();
+        for (int i = 0; i <= BUCKETS_US.length; i++) {
+            sb.append(i < BUCKETS_US.length ? "<" + BUCKETS_US[i] : ">=" + BUCKETS_US[i - 1]);
+            sb.append(' ');
+        }
+        pw.println("  buckets: " + sb.toString().trim());
+        for (Map.Entry<String, Timer> entry : mTimers.entrySet()) {
+            entry.getValue().dump(pw);
+        }
+    }
+
+    /**
+     * One line per timer: timer,name,count,total,max,bucket0,..,bucketN with
+     * times in microseconds, preceded by a line giving the bucket bounds.
+     */
+    synchronized void dumpCheckin(PrintWriter pw) {
+        final StringBuilder sb = new StringBuilder("buckets");
+        for (long bound : BUCKETS_US) {
+            sb.append(',').append(bound);
+        }
+        pw.println(sb.toString());
+        for (Map.Entry<String, Timer> entry : mTimers.entrySet()) {
+            entry.getValue().dumpCheckin(pw);
+        }
+    }
+
+    static final class Timer {
+        private final String mName;
+        private final long[] mHistogram = new long[BUCKETS_US.length + 1];
+        private long mCount;
+        private long mTotalUs;
+        private long mMaxUs;
+
+        private Timer(String name) {
+            mName = name;
+        }
+
+        long start() {
+            return System.nanoTime();
+        }
+
+        void stop(long start) {
+            final long us = (System.nanoTime() - start) / 1000;
+            int bucket = 0;
+            while (bucket < BUCKETS_US.length && us >= BUCKETS_US[bucket]) {
+                bucket++;
+            }
+            synchronized (this) {
+                mHistogram[bucket]++;
+                mCount++;
+                mTotalUs += us;
+                if (us > mMaxUs) {
+                    mMaxUs = us;
+                }
+            }
+        }
+
+        synchronized void dump(PrintWriter pw) {
+            final StringBuilder sb = new StringBuilder();
+            for (long n : mHistogram) {
+                sb.append(n).append(' ');
+            }
+            pw.println("  " + mName + ": count=" + mCount
+                    + " avg=" + (mCount == 0 ? 0 : mTotalUs / mCount)
+                    + " max=" + mMaxUs + " [" + sb.toString().trim() + "]");
+        }
+
+        synchronized void dumpCheckin(PrintWriter pw) {
+            final StringBuilder sb = new StringBuilder("timer,");
+            sb.append(mName).append(',').append(mCount).append(',')
+                    .append(mTotalUs).append(',').append(mMaxUs);
+            for (long n : mHistogram) {
+                sb.append(',').append(n);
+            }
+            pw.println(sb.toString());
+        }
+    }
+}
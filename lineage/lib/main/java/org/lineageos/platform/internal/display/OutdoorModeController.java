@@ -19,6 +19,10 @@ package org.lineageos.platform.internal.display;
 import static lineageos.hardware.LiveDisplayManager.MODE_AUTO;
 import static lineageos.hardware.LiveDisplayManager.MODE_DAY;
 import static lineageos.hardware.LiveDisplayManager.MODE_OUTDOOR;
+import static org.lineageos.platform.internal.display.LiveDisplayService.DISPLAY_CHANGED;
+import static org.lineageos.platform.internal.display.LiveDisplayService.LOW_POWER_CHANGED;
+import static org.lineageos.platform.internal.display.LiveDisplayService.MODE_CHANGED;
+import static org.lineageos.platform.internal.display.LiveDisplayService.TWILIGHT_CHANGED;
 
 import android.content.Context;
 import android.net.Uri;
@@ -34,6 +38,7 @@ import lineageos.providers.LineageSettings;
 public class OutdoorModeController extends LiveDisplayFeature {
 
     private final LineageHardwareManager mHardware;
+    private final AmbientLightSensorHub mLightSensorHub;
     private AmbientLuxObserver mLuxObserver;
 
     // hardware capabilities
@@ -48,12 +53,17 @@ public class OutdoorModeController extends LiveDisplayFeature {
     private boolean mIsOutdoor;
     private boolean mIsSensorEnabled;
 
+    private final LiveDisplayStats.Timer mHalSetTimer = mStats.getTimer("hal.set");
+
     // sliding window for sensor event smoothing
     private static final int SENSOR_WINDOW_MS = 3000;
 
-    public OutdoorModeController(Context context, Handler handler) {
+    public OutdoorModeController(Context context, Handler handler,
+            AmbientLightSensorHub lightSensorHub) {
         super(context, handler);
 
+        mLightSensorHub = lightSensorHub;
+
         mHardware = LineageHardwareManager.getInstance(mContext);
         mUseOutdoorMode = mHardware.isSupported(LineageHardwareManager.FEATURE_SUNLIGHT_ENHANCEMENT);
 
@@ -71,7 +81,7 @@ public class OutdoorModeController extends LiveDisplayFeature {
             return;
         }
 
-        mLuxObserver = new AmbientLuxObserver(mContext, mHandler.getLooper(),
+        mLuxObserver = new AmbientLuxObserver(mLightSensorHub, mHandler.getLooper(),
                 mDefaultOutdoorLux, mOutdoorLuxHysteresis, SENSOR_WINDOW_MS);
 
         registerSettings(
@@ -87,6 +97,11 @@ public class OutdoorModeController extends LiveDisplayFeature {
         return mUseOutdoorMode;
     }
 
+    @Override
+    protected int getInterestMask() {
+        return MODE_CHANGED | DISPLAY_CHANGED | TWILIGHT_CHANGED | LOW_POWER_CHANGED;
+    }
+
     @Override
     protected void onUpdate() {
         updateOutdoorMode();
@@ -110,7 +125,9 @@ public class OutdoorModeController extends LiveDisplayFeature {
         // face if they turn it back on in normal conditions
         if (!isScreenOn() && getMode() != MODE_OUTDOOR) {
             mIsOutdoor = false;
+            final long start = mHalSetTimer.start();
             mHardware.set(LineageHardwareManager.FEATURE_SUNLIGHT_ENHANCEMENT, false);
+            mHalSetTimer.stop(start);
         }
     }
 
@@ -208,7 +225,9 @@ public class OutdoorModeController extends LiveDisplayFeature {
                     }
                 }
             }
+            final long start = mHalSetTimer.start();
             mHardware.set(LineageHardwareManager.FEATURE_SUNLIGHT_ENHANCEMENT, enabled);
+            mHalSetTimer.stop(start);
         }
     }
 
@@ -34,11 +34,15 @@ import lineageos.hardware.HSIC;
 import lineageos.hardware.LiveDisplayManager;
 import lineageos.providers.LineageSettings;
 
+import static org.lineageos.platform.internal.display.LiveDisplayService.MODE_CHANGED;
+
 public class PictureAdjustmentController extends LiveDisplayFeature {
 
     private static final String TAG = "LiveDisplay-PAC";
 
     private final LineageHardwareManager mHardware;
+    private final LiveDisplayStats.Timer mHalSetPictureAdjustmentTimer =
+            mStats.getTimer("hal.setPictureAdjustment");
     private final boolean mUsePictureAdjustment;
     private final boolean mHasDisplayModes;
 
@@ -84,6 +88,11 @@ public class PictureAdjustmentController extends LiveDisplayFeature {
         updatePictureAdjustment();
     }
 
+    @Override
+    protected int getInterestMask() {
+        return MODE_CHANGED;
+    }
+
     @Override
     protected void onUpdate() {
         updatePictureAdjustment();
@@ -93,7 +102,10 @@ public class PictureAdjustmentController extends LiveDisplayFeature {
         if (mUsePictureAdjustment && isScreenOn()) {
             final HSIC hsic = getPictureAdjustment();
             if (hsic != null) {
-                if (!mHardware.setPictureAdjustment(hsic)) {
+                final long start = mHalSetPictureAdjustmentTimer.start();
+                final boolean result = mHardware.setPictureAdjustment(hsic);
+                mHalSetPictureAdjustmentTimer.stop(start);
+                if (!result) {
                     Slog.e(TAG, "Failed to set picture adjustment! " + hsic.toString());
                 }
             }
@@ -34,6 +34,9 @@ import android.text.format.DateUtils;
 import android.text.format.Time;
 import android.util.Slog;
 
+import org.lineageos.internal.util.TwilightSchedule;
+
+import java.io.PrintWriter;
 import java.text.DateFormat;
 import java.util.ArrayList;
 import java.util.Date;
@@ -106,6 +109,13 @@ public final class TwilightTracker {
     }
 
 
+    public void dump(PrintWriter pw) {
+        pw.println();
+        pw.println("  TwilightTracker State:");
+        pw.println("    mTwilightState=" + getCurrentState());
+        mLocationHandler.dump(pw);
+    }
+
     private void setTwilightState(TwilightState state) {
         synchronized (mLock) {
             if (!Objects.equals(mTwilightState, state)) {
@@ -170,7 +180,8 @@ public final class TwilightTracker {
         private long mLastNetworkRegisterTime = -MIN_LOCATION_UPDATE_MS;
         private long mLastUpdateInterval;
         private Location mLocation;
-        private final TwilightCalculator mTwilightCalculator = new TwilightCalculator();
+        private final TwilightSchedule mTwilightSchedule =
+                new TwilightSchedule(LOCATION_UPDATE_DISTANCE_METER);
 
         public void processNewLocation(Location location) {
             Message msg = obtainMessage(MSG_PROCESS_NEW_LOCATION, location);
@@ -346,47 +357,22 @@ public final class TwilightTracker {
 
             final long now = System.currentTimeMillis();
 
-            // calculate yesterday's twilight
-            mTwilightCalculator.calculateTwilight(now - DateUtils.DAY_IN_MILLIS,
-                    mLocation.getLatitude(), mLocation.getLongitude());
-            final long yesterdaySunset = mTwilightCalculator.mSunset;
-
-            // calculate today's twilight
-            mTwilightCalculator.calculateTwilight(now,
-                    mLocation.getLatitude(), mLocation.getLongitude());
-            final boolean isNight = (mTwilightCalculator.mState == TwilightCalculator.NIGHT);
-            final long todaySunrise = mTwilightCalculator.mSunrise;
-            final long todaySunset = mTwilightCalculator.mSunset;
-
-            // calculate tomorrow's twilight
-            mTwilightCalculator.calculateTwilight(now + DateUtils.DAY_IN_MILLIS,
-                    mLocation.getLatitude(), mLocation.getLongitude());
-            final long tomorrowSunrise = mTwilightCalculator.mSunrise;
-
-            // set twilight state
-            TwilightState state = new TwilightState(isNight, yesterdaySunset,
-                    todaySunrise, todaySunset, tomorrowSunrise);
+            // look up yesterday's, today's and tomorrow's twilight
+            mTwilightSchedule.update(now, mLocation);
+            TwilightState state = new TwilightState(mTwilightSchedule.isNight(),
+                    mTwilightSchedule.getYesterdaySunset(),
+                    mTwilightSchedule.getTodaySunrise(), mTwilightSchedule.getTodaySunset(),
+                    mTwilightSchedule.getTomorrowSunrise());
             if (DEBUG) {
                 Slog.d(TAG, "Updating twilight state: " + state);
             }
             setTwilightState(state);
 
             // schedule next update
-            long nextUpdate = 0;
-            if (todaySunrise == -1 || todaySunset == -1) {
-                // In the case the day or night never ends the update is scheduled 12 hours later.
-                nextUpdate = now + 12 * DateUtils.HOUR_IN_MILLIS;
-            } else {
-                // add some extra time to be on the safe side.
-                nextUpdate += DateUtils.MINUTE_IN_MILLIS;
-
-                if (now > todaySunset) {
-                    nextUpdate += tomorrowSunrise;
-                } else if (now > todaySunrise) {
-                    nextUpdate += todaySunset;
-                } else {
-                    nextUpdate += todaySunrise;
-                }
+            final long nextUpdate = mTwilightSchedule.scheduleNextUpdate(now);
+            if (nextUpdate == -1) {
+                // Already armed for this transition
+                return;
             }
 
             if (DEBUG) {
@@ -399,6 +385,11 @@ public final class TwilightTracker {
             mAlarmManager.cancel(pendingIntent);
             mAlarmManager.setExact(AlarmManager.RTC, nextUpdate, pendingIntent);
         }
+
+        void dump(PrintWriter pw) {
+            pw.println("    mLocation=" + mLocation);
+            mTwilightSchedule.dump(pw);
+        }
     }
 
     private final BroadcastReceiver mUpdateLocationReceiver = new BroadcastReceiver() {
@@ -21,8 +21,12 @@ import java.util.UUID;
 import android.annotation.SdkConstant;
 import android.annotation.SdkConstant.SdkConstantType;
 import android.app.NotificationGroup;
+import android.content.BroadcastReceiver;
 import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
 import android.os.IBinder;
+import android.os.Parcel;
 import android.os.ParcelUuid;
 import android.os.RemoteException;
 import android.os.ServiceManager;
@@ -77,6 +81,14 @@ public class ProfileManager {
     public static final String INTENT_ACTION_PROFILE_UPDATED =
             "lineageos.platform.intent.action.PROFILE_UPDATED";
 
+    /**
+     * Broadcast Action: A profile or notification group was added, removed or updated.
+     * Only delivered to registered receivers, used to invalidate the client side cache.
+     * @hide
+     */
+    public static final String INTENT_ACTION_PROFILES_CHANGED =
+            "lineageos.platform.intent.action.PROFILES_CHANGED";
+
 
     /**
      * @hide
@@ -112,6 +124,15 @@ public class ProfileManager {
      */
     public static final String EXTRA_PROFILE_UUID = "uuid";
 
+    /**
+     * Extra for {@link #INTENT_ACTION_PROFILE_SELECTED}, {@link #INTENT_ACTION_PROFILES_CHANGED}
+     * and {@link #PROFILES_STATE_CHANGED_ACTION}:
+     * Monotonically increasing generation of the profile state, used to invalidate the
+     * client side cache
+     * @hide
+     */
+    public static final String EXTRA_PROFILES_GENERATION = "profiles_generation";
+
     /**
      * Extra for {@link #INTENT_ACTION_PROFILE_SELECTED}:
      * The name of the previously active profile
@@ -228,6 +249,34 @@ public class ProfileManager {
      */
     public static final int PROFILES_STATE_ENABLED = 1;
 
+    private final Object mCacheLock = new Object();
+    private boolean mCacheEnabled;
+    // Latest generation pushed by ProfileManagerService, -1 if none was received yet
+    private int mServiceGeneration = -1;
+    // Bumped whenever the cache is invalidated, so stale binder results are not stored
+    private int mCacheGeneration;
+    // Profiles are mutable, so they are cached in parceled form and every caller gets a copy
+    private byte[] mCachedActiveProfile;
+    private byte[] mCachedProfiles;
+    private ProfileSummary[] mCachedProfileSummaries;
+
+    private final BroadcastReceiver mCacheInvalidator = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            int generation = intent.getIntExtra(EXTRA_PROFILES_GENERATION, -1);
+            synchronized (mCacheLock) {
+                if (generation >= 0) {
+                    if (generation <= mServiceGeneration) {
+                        // Already invalidated by a newer generation
+                        return;
+                    }
+                    mServiceGeneration = generation;
+                }
+                invalidateCacheLocked();
+            }
+        }
+    };
+
     private static ProfileManager sProfileManagerInstance;
     private ProfileManager(Context context) {
         Context appContext = context.getApplicationContext();
@@ -239,10 +288,19 @@ public class ProfileManager {
         sService = getService();
 
         if (context.getPackageManager().hasSystemFeature(
-                lineageos.app.LineageContextConstants.Features.PROFILES) && sService == null) {
-            Log.wtf(TAG, "Unable to get ProfileManagerService. The service either" +
-                    " crashed, was not started, or the interface has been called to early in" +
-                    " SystemServer init");
+                lineageos.app.LineageContextConstants.Features.PROFILES)) {
+            if (sService == null) {
+                Log.wtf(TAG, "Unable to get ProfileManagerService. The service either" +
+                        " crashed, was not started, or the interface has been called to early" +
+                        " in SystemServer init");
+            } else {
+                IntentFilter filter = new IntentFilter();
+                filter.addAction(INTENT_ACTION_PROFILE_SELECTED);
+                filter.addAction(INTENT_ACTION_PROFILES_CHANGED);
+                filter.addAction(PROFILES_STATE_CHANGED_ACTION);
+                mContext.registerReceiver(mCacheInvalidator, filter);
+                mCacheEnabled = true;
+            }
         }
     }
 
@@ -278,6 +336,7 @@ public class ProfileManager {
         } catch (RemoteException e) {
             Log.e(TAG, e.getLocalizedMessage(), e);
         }
+        invalidateCache();
     }
 
     /**
@@ -290,15 +349,35 @@ public class ProfileManager {
         } catch (RemoteException e) {
             Log.e(TAG, e.getLocalizedMessage(), e);
         }
+        invalidateCache();
     }
 
     /**
      * Get the active {@link Profile}
+     * <p>
+     * The result is cached until the profile state changes. Each call returns a new copy,
+     * changes to it only take effect when passed to {@link #updateProfile(Profile)}.
      * @return active {@link Profile}
      */
     public Profile getActiveProfile() {
+        final int generation;
+        synchronized (mCacheLock) {
+            if (mCachedActiveProfile != null) {
+                return unmarshallProfile(mCachedActiveProfile);
+            }
+            generation = mCacheGeneration;
+        }
         try {
-            return getService().getActiveProfile();
+            Profile profile = getService().getActiveProfile();
+            if (profile != null) {
+                byte[] data = marshallProfile(profile);
+                synchronized (mCacheLock) {
+                    if (mCacheEnabled && generation == mCacheGeneration) {
+                        mCachedActiveProfile = data;
+                    }
+                }
+            }
+            return profile;
         } catch (RemoteException e) {
             Log.e(TAG, e.getLocalizedMessage(), e);
         }
@@ -315,6 +394,7 @@ public class ProfileManager {
         } catch (RemoteException e) {
             Log.e(TAG, e.getLocalizedMessage(), e);
         }
+        invalidateCache();
     }
 
     /**
@@ -327,6 +407,7 @@ public class ProfileManager {
         } catch (RemoteException e) {
             Log.e(TAG, e.getLocalizedMessage(), e);
         }
+        invalidateCache();
     }
 
     /**
@@ -339,6 +420,7 @@ public class ProfileManager {
         } catch (RemoteException e) {
             Log.e(TAG, e.getLocalizedMessage(), e);
         }
+        invalidateCache();
     }
 
     /**
@@ -377,13 +459,43 @@ public class ProfileManager {
      * @return {@link String[]} of profile names
      */
     public String[] getProfileNames() {
+        Profile[] profiles = getProfiles();
+        if (profiles == null) {
+            return null;
+        }
+        String[] names = new String[profiles.length];
+        for (int i = 0; i < profiles.length; i++) {
+            names[i] = profiles[i].getName();
+        }
+        return names;
+    }
+
+    /**
+     * Get the {@link Profile}s currently available to the user
+     * <p>
+     * The result is cached until the profile state changes. Each call returns new copies,
+     * changes to them only take effect when passed to {@link #updateProfile(Profile)}.
+     * @return {@link Profile[]}
+     */
+    public Profile[] getProfiles() {
+        final int generation;
+        synchronized (mCacheLock) {
+            if (mCachedProfiles != null) {
+                return unmarshallProfiles(mCachedProfiles);
+            }
+            generation = mCacheGeneration;
+        }
         try {
             Profile[] profiles = getService().getProfiles();
-            String[] names = new String[profiles.length];
-            for (int i = 0; i < profiles.length; i++) {
-                names[i] = profiles[i].getName();
+            if (profiles != null) {
+                byte[] data = marshallProfiles(profiles);
+                synchronized (mCacheLock) {
+                    if (mCacheEnabled && generation == mCacheGeneration) {
+                        mCachedProfiles = data;
+                    }
+                }
             }
-            return names;
+            return profiles;
         } catch (RemoteException e) {
             Log.e(TAG, e.getLocalizedMessage(), e);
         }
@@ -391,12 +503,27 @@ public class ProfileManager {
     }
 
     /**
-     * Get the {@link Profile}s currently available to the user
-     * @return {@link Profile[]}
+     * Get a {@link ProfileSummary} for each {@link Profile} currently available to the user.
+     * This is considerably cheaper than {@link #getProfiles()}, use
+     * {@link #getProfile(UUID)} to fetch a full {@link Profile} when needed.
+     * @return {@link ProfileSummary[]} sorted by name
      */
-    public Profile[] getProfiles() {
+    public ProfileSummary[] getProfileSummaries() {
+        final int generation;
+        synchronized (mCacheLock) {
+            if (mCachedProfileSummaries != null) {
+                return mCachedProfileSummaries.clone();
+            }
+            generation = mCacheGeneration;
+        }
         try {
-            return getService().getProfiles();
+            ProfileSummary[] summaries = getService().getProfileSummaries();
+            synchronized (mCacheLock) {
+                if (mCacheEnabled && summaries != null && generation == mCacheGeneration) {
+                    mCachedProfileSummaries = summaries.clone();
+                }
+            }
+            return summaries;
         } catch (RemoteException e) {
             Log.e(TAG, e.getLocalizedMessage(), e);
         }
@@ -477,6 +604,7 @@ public class ProfileManager {
         } catch (RemoteException e) {
             Log.e(TAG, e.getLocalizedMessage(), e);
         }
+        invalidateCache();
     }
 
     /**
@@ -490,6 +618,7 @@ public class ProfileManager {
         } catch (RemoteException e) {
             Log.e(TAG, e.getLocalizedMessage(), e);
         }
+        invalidateCache();
     }
 
     /**
@@ -503,6 +632,7 @@ public class ProfileManager {
         } catch (RemoteException e) {
             Log.e(TAG, e.getLocalizedMessage(), e);
         }
+        invalidateCache();
     }
 
     /**
@@ -559,6 +689,7 @@ public class ProfileManager {
         } catch (SecurityException e) {
             Log.e(TAG, e.getLocalizedMessage(), e);
         }
+        invalidateCache();
     }
 
     /**
@@ -573,4 +704,59 @@ public class ProfileManager {
         }
         return false;
     }
+
+    private void invalidateCache() {
+        synchronized (mCacheLock) {
+            invalidateCacheLocked();
+        }
+    }
+
+    private void invalidateCacheLocked() {
+        mCacheGeneration++;
+        mCachedActiveProfile = null;
+        mCachedProfiles = null;
+        mCachedProfileSummaries = null;
+    }
+
+    private static byte[] marshallProfile(Profile profile) {
+        Parcel parcel = Parcel.obtain();
+        try {
+            profile.writeToParcel(parcel, 0);
+            return parcel.marshall();
+        } finally {
+            parcel.recycle();
+        }
+    }
+
+    private static Profile unmarshallProfile(byte[] data) {
+        Parcel parcel = Parcel.obtain();
+        try {
+            parcel.unmarshall(data, 0, data.length);
+            parcel.setDataPosition(0);
+            return Profile.CREATOR.createFromParcel(parcel);
+        } finally {
+            parcel.recycle();
+        }
+    }
+
+    private static byte[] marshallProfiles(Profile[] profiles) {
+        Parcel parcel = Parcel.obtain();
+        try {
+            parcel.writeTypedArray(profiles, 0);
+            return parcel.marshall();
+        } finally {
+            parcel.recycle();
+        }
+    }
+
+    private static Profile[] unmarshallProfiles(byte[] data) {
+        Parcel parcel = Parcel.obtain();
+        try {
+            parcel.unmarshall(data, 0, data.length);
+            parcel.setDataPosition(0);
+            return parcel.createTypedArray(Profile.CREATOR);
+        } finally {
+            parcel.recycle();
+        }
+    }
 }
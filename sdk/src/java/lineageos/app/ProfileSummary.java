@@ -0,0 +1,161 @@
+/*
+ * Copyright (C) 2020 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package lineageos.app;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+
+import java.util.Objects;
+import java.util.UUID;
+
+import lineageos.os.Concierge;
+
+/**
+ * A lightweight description of a {@link Profile}, suitable for showing the available
+ * profiles in a list. Use {@link ProfileManager#getProfile(UUID)} to fetch the full
+ * {@link Profile} when needed.
+ */
+public class ProfileSummary implements Parcelable, Comparable<ProfileSummary> {
+
+    private final UUID mUuid;
+
+    private final String mName;
+
+    private final int mProfileType;
+
+    private final boolean mActive;
+
+    /** @hide */
+    public ProfileSummary(Profile profile, boolean active) {
+        mUuid = profile.getUuid();
+        mName = profile.getName();
+        mProfileType = profile.getProfileType();
+        mActive = active;
+    }
+
+    private ProfileSummary(Parcel in) {
+        Concierge.ParcelInfo parcelInfo = Concierge.receiveParcel(in);
+
+        long mostSigBits = in.readLong();
+        long leastSigBits = in.readLong();
+        mUuid = new UUID(mostSigBits, leastSigBits);
+        mName = in.readString();
+        mProfileType = in.readInt();
+        mActive = in.readInt() != 0;
+
+        parcelInfo.complete();
+    }
+
+    /**
+     * Get the {@link UUID} of the summarized {@link Profile}
+     * @return the {@link UUID}
+     */
+    public UUID getUuid() {
+        return mUuid;
+    }
+
+    /**
+     * Get the name of the summarized {@link Profile}
+     * @return the name
+     */
+    public String getName() {
+        return mName;
+    }
+
+    /**
+     * Get the type of the summarized {@link Profile}
+     * @return one of {@link Profile.Type}
+     */
+    public int getProfileType() {
+        return mProfileType;
+    }
+
+    /**
+     * Whether the summarized {@link Profile} is the active one
+     * @return true if the profile is active
+     */
+    public boolean isActive() {
+        return mActive;
+    }
+
+    @Override
+    public int describeContents() {
+        return 0;
+    }
+
+    @Override
+    public void writeToParcel(Parcel dest, int flags) {
+        Concierge.ParcelInfo parcelInfo = Concierge.prepareParcel(dest);
+
+        dest.writeLong(mUuid.getMostSignificantBits());
+        dest.writeLong(mUuid.getLeastSignificantBits());
+        dest.writeString(mName);
+        dest.writeInt(mProfileType);
+        dest.writeInt(mActive ? 1 : 0);
+
+        parcelInfo.complete();
+    }
+
+    public static final Creator<ProfileSummary> CREATOR = new Creator<ProfileSummary>() {
+        @Override
+        public ProfileSummary createFromParcel(Parcel in) {
+            return new ProfileSummary(in);
+        }
+
+        @Override
+        public ProfileSummary[] newArray(int size) {
+            return new ProfileSummary[size];
+        }
+    };
+
+    @Override
+    public int compareTo(ProfileSummary other) {
+        if (mName == null) {
+            return other.mName == null ? 0 : -1;
+        }
+        if (other.mName == null) {
+            return 1;
+        }
+        return mName.compareTo(other.mName);
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (other == null) {
+            return false;
+        }
+        if (!getClass().equals(other.getClass())) {
+            return false;
+        }
+
+        ProfileSummary o = (ProfileSummary) other;
+        return Objects.equals(mUuid, o.mUuid)
+                && Objects.equals(mName, o.mName)
+                && mProfileType == o.mProfileType
+                && mActive == o.mActive;
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(mUuid, mName, mProfileType, mActive);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("ProfileSummary[uuid=%s, name=%s, type=%d, active=%b]",
+                mUuid, mName, mProfileType, mActive);
+    }
+}
@@ -3731,6 +3731,14 @@ public final class LineageSettings {
          */
         public static final String WEATHER_TEMPERATURE_UNIT = "weather_temperature_unit";
 
+        /**
+         * Overrides of the per-app weather request limits, as a comma separated list of
+         * key=value pairs: burst, refill_interval (in milliseconds) and queue_size. Keys left out
+         * keep their default from the platform config. Meant for tests and debugging.
+         * @hide
+         */
+        public static final String WEATHER_REQUEST_LIMITS = "weather_request_limits";
+
         /**
          * Developer options - Navigation Bar show switch
          * @deprecated
@@ -317,17 +317,33 @@ public class ColorUtils {
      * @return array of floats representing rgb values 0->1
      */
     public static float[] temperatureToRGB(int degreesK) {
-        int k = MathUtils.constrain(degreesK, 1000, 20000);
-        float a = (k % 100) / 100.0f;
-        int i = ((k - 1000)/ 100) * 3;
-
-        return new float[] { interp(i, a), interp(i+1, a), interp(i+2, a) };
+        final float[] rgb = new float[3];
+        temperatureToRGB(degreesK, rgb);
+        return rgb;
     }
 
-    private static float interp(int i, float a) {
-        return MathUtils.lerp((float)sColorTable[i], (float)sColorTable[i+3], a);
+    /**
+     * Convert a color temperature value (in Kelvin) to a RGB units as floats,
+     * writing the result into the given array. This does not allocate, so it
+     * is suitable for use from an animation.
+     *
+     * @param degreesK
+     * @param outRgb array of at least three floats which receives the rgb values 0->1
+     */
+    public static void temperatureToRGB(int degreesK, float[] outRgb) {
+        final int k = MathUtils.constrain(degreesK, TEMPERATURE_MIN, TEMPERATURE_MAX);
+        final float a = (k % TEMPERATURE_STEP) / (float) TEMPERATURE_STEP;
+        final int i = ((k - TEMPERATURE_MIN) / TEMPERATURE_STEP) * 6;
+
+        outRgb[0] = sTemperatureLut[i] + sTemperatureLut[i + 3] * a;
+        outRgb[1] = sTemperatureLut[i + 1] + sTemperatureLut[i + 4] * a;
+        outRgb[2] = sTemperatureLut[i + 2] + sTemperatureLut[i + 5] * a;
     }
 
+    private static final int TEMPERATURE_MIN = 1000;
+    private static final int TEMPERATURE_MAX = 20000;
+    private static final int TEMPERATURE_STEP = 100;
+
     /**
      * This table is a modified version of the original blackbody chart, found here:
      * http://www.vendian.org/mncharity/dir3/blackbody/UnstableURLs/bbr_color.html
@@ -529,4 +545,24 @@ public class ColorUtils {
             0.64937392, 0.76836326, 1.00000000
     };
 
+    /**
+     * sColorTable converted to floats once, with the slope to the next step
+     * stored alongside each entry: { r, g, b, dr, dg, db } per 100K step.
+     */
+    private static final float[] sTemperatureLut = buildTemperatureLut();
+
+    private static float[] buildTemperatureLut() {
+        final int steps = (TEMPERATURE_MAX - TEMPERATURE_MIN) / TEMPERATURE_STEP + 1;
+        final float[] lut = new float[steps * 6];
+        for (int step = 0; step < steps; step++) {
+            for (int c = 0; c < 3; c++) {
+                final float from = (float) sColorTable[step * 3 + c];
+                final float to = (float) sColorTable[step * 3 + c + 3];
+                lut[step * 6 + c] = from;
+                lut[step * 6 + c + 3] = to - from;
+            }
+        }
+        return lut;
+    }
+
 }
@@ -30,11 +30,10 @@ import lineageos.providers.LineageSettings;
 import lineageos.providers.WeatherContract;
 
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
 
 /**
  * Provides access to the weather services in the device.
@@ -44,11 +43,13 @@ public class LineageWeatherManager {
     private static ILineageWeatherManager sWeatherManagerService;
     private static LineageWeatherManager sInstance;
     private Context mContext;
-    private Map<RequestInfo,WeatherUpdateRequestListener> mWeatherUpdateRequestListeners
-            = Collections.synchronizedMap(new HashMap<RequestInfo,WeatherUpdateRequestListener>());
-    private Map<RequestInfo,LookupCityRequestListener> mLookupNameRequestListeners
-            = Collections.synchronizedMap(new HashMap<RequestInfo,LookupCityRequestListener>());
+    // Listeners of the requests in flight, keyed by request id
+    private final ConcurrentHashMap<Integer, PendingListener<WeatherUpdateRequestListener>>
+            mWeatherUpdateRequestListeners = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Integer, PendingListener<LookupCityRequestListener>>
+            mLookupNameRequestListeners = new ConcurrentHashMap<>();
     private Handler mHandler;
+    private Executor mMainExecutor;
     private Set<WeatherServiceProviderChangeListener> mProviderChangedListeners = new ArraySet<>();
 
     private static final String TAG = LineageWeatherManager.class.getSimpleName();
@@ -81,6 +82,15 @@ public class LineageWeatherManager {
          * No match found for the query
          */
         public static final int NO_MATCH_FOUND = -4;
+        /**
+         * The caller submitted too many requests in a short period of time. Retry later
+         */
+        public static final int RATE_LIMITED = -5;
+        /**
+         * Too many requests are waiting for the weather provider service and this one could not
+         * be queued
+         */
+        public static final int QUEUE_FULL = -6;
     }
 
     private LineageWeatherManager(Context context) {
@@ -93,6 +103,17 @@ public class LineageWeatherManager {
             Log.wtf(TAG, "Unable to bind the LineageWeatherManagerService");
         }
         mHandler = new Handler(appContext.getMainLooper());
+        mMainExecutor = mHandler::post;
+    }
+
+    private static class PendingListener<T> {
+        final T listener;
+        final Executor executor;
+
+        PendingListener(T listener, Executor executor) {
+            this.listener = listener;
+            this.executor = executor;
+        }
     }
 
     /**
@@ -134,26 +155,34 @@ public class LineageWeatherManager {
      */
     public int requestWeatherUpdate(@NonNull Location location,
             @NonNull WeatherUpdateRequestListener listener) {
+        return requestWeatherUpdate(location, mMainExecutor, listener);
+    }
+
+    /**
+     * Forces the weather service to request the latest available weather information for
+     * the supplied {@link android.location.Location} location.
+     *
+     * @param location The location you want to get the latest weather data from.
+     * @param executor The {@link Executor} the listener will be called on
+     * @param listener {@link WeatherUpdateRequestListener} To be notified once the active weather
+     *                                                     service provider has finished
+     *                                                     processing your request
+     * @return An integer that identifies the request submitted to the weather service
+     * Note that this method might return -1 if an error occurred while trying to submit
+     * the request.
+     */
+    public int requestWeatherUpdate(@NonNull Location location, @NonNull Executor executor,
+            @NonNull WeatherUpdateRequestListener listener) {
         if (sWeatherManagerService == null) {
             return -1;
         }
 
-        try {
-            int tempUnit = LineageSettings.Global.getInt(mContext.getContentResolver(),
-                    LineageSettings.Global.WEATHER_TEMPERATURE_UNIT,
-                        WeatherContract.WeatherColumns.TempUnit.FAHRENHEIT);
-
-            RequestInfo info = new RequestInfo
-                    .Builder(mRequestInfoListener)
-                    .setLocation(location)
-                    .setTemperatureUnit(tempUnit)
-                    .build();
-            if (listener != null) mWeatherUpdateRequestListeners.put(info, listener);
-            sWeatherManagerService.updateWeather(info);
-            return info.hashCode();
-        } catch (RemoteException e) {
-            return -1;
-        }
+        RequestInfo info = new RequestInfo
+                .Builder(mRequestInfoListener)
+                .setLocation(location)
+                .setTemperatureUnit(getTemperatureUnit())
+                .build();
+        return submitWeatherUpdate(info, executor, listener);
     }
 
     /**
@@ -172,24 +201,127 @@ public class LineageWeatherManager {
      */
     public int requestWeatherUpdate(@NonNull WeatherLocation weatherLocation,
             @NonNull WeatherUpdateRequestListener listener) {
+        return requestWeatherUpdate(weatherLocation, mMainExecutor, listener);
+    }
+
+    /**
+     * Forces the weather service to request the latest weather information for the provided
+     * WeatherLocation. This is the preferred method for requesting a weather update.
+     *
+     * @param weatherLocation A {@link lineageos.weather.WeatherLocation} that was previously
+     *                        obtained by calling
+     *                        {@link #lookupCity(String, LookupCityRequestListener)}
+     * @param executor The {@link Executor} the listener will be called on
+     * @param listener {@link WeatherUpdateRequestListener} To be notified once the active weather
+     *                                                     service provider has finished
+     *                                                     processing your request
+     * @return An integer that identifies the request submitted to the weather service.
+     * Note that this method might return -1 if an error occurred while trying to submit
+     * the request.
+     */
+    public int requestWeatherUpdate(@NonNull WeatherLocation weatherLocation,
+            @NonNull Executor executor, @NonNull WeatherUpdateRequestListener listener) {
         if (sWeatherManagerService == null) {
             return -1;
         }
 
-        try {
-            int tempUnit = LineageSettings.Global.getInt(mContext.getContentResolver(),
-                    LineageSettings.Global.WEATHER_TEMPERATURE_UNIT,
-                        WeatherContract.WeatherColumns.TempUnit.FAHRENHEIT);
+        RequestInfo info = new RequestInfo
+                .Builder(mRequestInfoListener)
+                .setWeatherLocation(weatherLocation)
+                .setTemperatureUnit(getTemperatureUnit())
+                .build();
+        return submitWeatherUpdate(info, executor, listener);
+    }
+
+    /**
+     * Forces the weather service to request the latest weather information for each of the
+     * provided WeatherLocations. Prefer this method over calling
+     * {@link #requestWeatherUpdate(WeatherLocation, WeatherUpdateRequestListener)} for each
+     * location, as the weather provider service may be able to honor all of them at once. Each
+     * location that has to be fetched from the provider counts against the caller's rate limit
+     * just like a single request would.
+     *
+     * @param weatherLocations A list of {@link lineageos.weather.WeatherLocation}
+     * @param listener {@link WeatherUpdateRequestListener} To be notified once for each location
+     *                                                     when the active weather service
+     *                                                     provider has finished processing it
+     * @return An array with the IDs of the requests submitted to the weather service, in the
+     * same order as the locations. Note that this method might return null if an error occurred
+     * while trying to submit the requests.
+     */
+    public int[] requestWeatherUpdates(@NonNull List<WeatherLocation> weatherLocations,
+            @NonNull WeatherUpdateRequestListener listener) {
+        return requestWeatherUpdates(weatherLocations, mMainExecutor, listener);
+    }
+
+    /**
+     * Forces the weather service to request the latest weather information for each of the
+     * provided WeatherLocations. Prefer this method over calling
+     * {@link #requestWeatherUpdate(WeatherLocation, Executor, WeatherUpdateRequestListener)} for
+     * each location, as the weather provider service may be able to honor all of them at once.
+     * Each location that has to be fetched from the provider counts against the caller's rate
+     * limit just like a single request would.
+     *
+     * @param weatherLocations A list of {@link lineageos.weather.WeatherLocation}
+     * @param executor The {@link Executor} the listener will be called on
+     * @param listener {@link WeatherUpdateRequestListener} To be notified once for each location
+     *                                                     when the active weather service
+     *                                                     provider has finished processing it
+     * @return An array with the IDs of the requests submitted to the weather service, in the
+     * same order as the locations. Note that this method might return null if an error occurred
+     * while trying to submit the requests.
+     */
+    public int[] requestWeatherUpdates(@NonNull List<WeatherLocation> weatherLocations,
+            @NonNull Executor executor, @NonNull WeatherUpdateRequestListener listener) {
+        if (sWeatherManagerService == null) {
+            return null;
+        }
 
+        final int tempUnit = getTemperatureUnit();
+        final List<RequestInfo> infos = new ArrayList<>(weatherLocations.size());
+        final int[] requestIds = new int[weatherLocations.size()];
+        for (int i = 0; i < requestIds.length; i++) {
             RequestInfo info = new RequestInfo
                     .Builder(mRequestInfoListener)
-                    .setWeatherLocation(weatherLocation)
+                    .setWeatherLocation(weatherLocations.get(i))
                     .setTemperatureUnit(tempUnit)
                     .build();
-            if (listener != null) mWeatherUpdateRequestListeners.put(info, listener);
+            infos.add(info);
+            requestIds[i] = info.hashCode();
+            if (listener != null) {
+                mWeatherUpdateRequestListeners.put(requestIds[i],
+                        new PendingListener<>(listener, executor));
+            }
+        }
+        try {
+            sWeatherManagerService.updateWeatherBatch(infos);
+            return requestIds;
+        } catch (RemoteException e) {
+            for (int requestId : requestIds) {
+                mWeatherUpdateRequestListeners.remove(requestId);
+            }
+            return null;
+        }
+    }
+
+    private int getTemperatureUnit() {
+        return LineageSettings.Global.getInt(mContext.getContentResolver(),
+                LineageSettings.Global.WEATHER_TEMPERATURE_UNIT,
+                    WeatherContract.WeatherColumns.TempUnit.FAHRENHEIT);
+    }
+
+    private int submitWeatherUpdate(RequestInfo info, Executor executor,
+            WeatherUpdateRequestListener listener) {
+        final int requestId = info.hashCode();
+        if (listener != null) {
+            mWeatherUpdateRequestListeners.put(requestId,
+                    new PendingListener<>(listener, executor));
+        }
+        try {
             sWeatherManagerService.updateWeather(info);
-            return info.hashCode();
+            return requestId;
         } catch (RemoteException e) {
+            mWeatherUpdateRequestListeners.remove(requestId);
             return -1;
         }
     }
@@ -207,18 +339,40 @@ public class LineageWeatherManager {
      * the request.
      */
     public int lookupCity(@NonNull String city, @NonNull LookupCityRequestListener listener) {
+        return lookupCity(city, mMainExecutor, listener);
+    }
+
+    /**
+     * Request the active weather provider service to lookup the supplied city name.
+     *
+     * @param city The city name
+     * @param executor The {@link Executor} the listener will be called on
+     * @param listener {@link LookupCityRequestListener} To be notified once the request has been
+     *                                                  completed. Upon success, a list of
+     *                                                  {@link lineageos.weather.WeatherLocation}
+     *                                                  will be provided
+     * @return An integer that identifies the request submitted to the weather service.
+     * Note that this method might return -1 if an error occurred while trying to submit
+     * the request.
+     */
+    public int lookupCity(@NonNull String city, @NonNull Executor executor,
+            @NonNull LookupCityRequestListener listener) {
         if (sWeatherManagerService == null) {
             return -1;
         }
+        RequestInfo info = new RequestInfo
+                .Builder(mRequestInfoListener)
+                .setCityName(city)
+                .build();
+        final int requestId = info.hashCode();
+        if (listener != null) {
+            mLookupNameRequestListeners.put(requestId, new PendingListener<>(listener, executor));
+        }
         try {
-            RequestInfo info = new RequestInfo
-                    .Builder(mRequestInfoListener)
-                    .setCityName(city)
-                    .build();
-            if (listener != null) mLookupNameRequestListeners.put(info, listener);
             sWeatherManagerService.lookupCity(info);
-            return info.hashCode();
+            return requestId;
         } catch (RemoteException e) {
+            mLookupNameRequestListeners.remove(requestId);
             return -1;
         }
     }
@@ -232,6 +386,9 @@ public class LineageWeatherManager {
             return;
         }
 
+        // A cancelled request never completes, don't hold on to its listener
+        mWeatherUpdateRequestListeners.remove(requestId);
+        mLookupNameRequestListeners.remove(requestId);
         try {
             sWeatherManagerService.cancelRequest(requestId);
         }catch (RemoteException e){
@@ -333,13 +490,13 @@ public class LineageWeatherManager {
         @Override
         public void onWeatherRequestCompleted(final RequestInfo requestInfo, final int status,
                 final WeatherInfo weatherInfo) {
-            final WeatherUpdateRequestListener listener
-                    = mWeatherUpdateRequestListeners.remove(requestInfo);
-            if (listener != null) {
-                mHandler.post(new Runnable() {
+            final PendingListener<WeatherUpdateRequestListener> pending
+                    = mWeatherUpdateRequestListeners.remove(requestInfo.hashCode());
+            if (pending != null) {
+                pending.executor.execute(new Runnable() {
                     @Override
                     public void run() {
-                        listener.onWeatherRequestCompleted(status, weatherInfo);
+                        pending.listener.onWeatherRequestCompleted(status, weatherInfo);
                     }
                 });
             }
@@ -349,13 +506,13 @@ public class LineageWeatherManager {
         public void onLookupCityRequestCompleted(RequestInfo requestInfo, final int status,
             final List<WeatherLocation> weatherLocations) {
 
-            final LookupCityRequestListener listener
-                    = mLookupNameRequestListeners.remove(requestInfo);
-            if (listener != null) {
-                mHandler.post(new Runnable() {
+            final PendingListener<LookupCityRequestListener> pending
+                    = mLookupNameRequestListeners.remove(requestInfo.hashCode());
+            if (pending != null) {
+                pending.executor.execute(new Runnable() {
                     @Override
                     public void run() {
-                        listener.onLookupCityRequestCompleted(status, weatherLocations);
+                        pending.listener.onLookupCityRequestCompleted(status, weatherLocations);
                     }
                 });
             }
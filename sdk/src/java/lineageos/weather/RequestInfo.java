@@ -247,6 +247,23 @@ public final class RequestInfo implements Parcelable {
         return mListener;
     }
 
+    /**
+     * Create a new request for the same weather, with its own key and the given listener
+     * @hide
+     */
+    public RequestInfo copyWithListener(IRequestInfoListener listener) {
+        RequestInfo info = new RequestInfo();
+        info.mListener = listener;
+        info.mRequestType = mRequestType;
+        info.mCityName = mCityName;
+        info.mWeatherLocation = mWeatherLocation;
+        info.mLocation = mLocation != null ? new Location(mLocation) : null;
+        info.mTempUnit = mTempUnit;
+        info.mIsQueryOnly = mIsQueryOnly;
+        info.mKey = UUID.randomUUID().toString();
+        return info;
+    }
+
     /**
      * @return the city name if this is a lookup request, null otherwise
      */
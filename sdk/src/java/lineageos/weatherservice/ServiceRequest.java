@@ -28,6 +28,11 @@ public final class ServiceRequest {
 
     private final RequestInfo mInfo;
     private final IWeatherProviderServiceClient mClient;
+    private final OnFinishedListener mOnFinishedListener;
+
+    /* package */ interface OnFinishedListener {
+        void onFinished(ServiceRequest request);
+    }
 
     private enum Status {
         IN_PROGRESS, COMPLETED, CANCELLED, FAILED, REJECTED
@@ -35,11 +40,23 @@ public final class ServiceRequest {
     private Status mStatus;
 
     /* package */ ServiceRequest(RequestInfo info, IWeatherProviderServiceClient client) {
+        this(info, client, null);
+    }
+
+    /* package */ ServiceRequest(RequestInfo info, IWeatherProviderServiceClient client,
+            OnFinishedListener onFinishedListener) {
         mInfo = info;
         mClient = client;
+        mOnFinishedListener = onFinishedListener;
         mStatus = Status.IN_PROGRESS;
     }
 
+    private void notifyFinished() {
+        if (mOnFinishedListener != null) {
+            mOnFinishedListener.onFinished(this);
+        }
+    }
+
     /**
      * Obtains the request information
      * @return {@link lineageos.weather.RequestInfo}
@@ -82,6 +99,7 @@ public final class ServiceRequest {
                 } catch (RemoteException e) {
                 }
                 mStatus = Status.COMPLETED;
+                notifyFinished();
             }
         }
     }
@@ -109,6 +127,7 @@ public final class ServiceRequest {
                 } catch (RemoteException e) {
                 }
                 mStatus = Status.FAILED;
+                notifyFinished();
             }
         }
     }
@@ -139,6 +158,7 @@ public final class ServiceRequest {
                         throw new IllegalArgumentException("Can't reject with status " + status);
                 }
                 mStatus = Status.REJECTED;
+                notifyFinished();
             }
         }
     }
@@ -24,11 +24,15 @@ import android.os.Handler;
 import android.os.IBinder;
 import android.os.Looper;
 import android.os.Message;
+import android.os.RemoteException;
 import lineageos.weather.RequestInfo;
 
-import java.util.Collections;
-import java.util.Set;
-import java.util.WeakHashMap;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * This is the base class for implementing a weather provider service. A weather provider service
@@ -59,8 +63,32 @@ public abstract class WeatherProviderService extends Service {
 
     private Handler mHandler;
     private IWeatherProviderServiceClient mClient;
-    private Set<ServiceRequest> mWeakRequestsSet
-            = Collections.newSetFromMap(new WeakHashMap<ServiceRequest, Boolean>());
+    // Requests in progress by request id. They leave the map as soon as they are finished or
+    // cancelled, so looking one up never contends with new submissions. The map only holds weak
+    // references, a request the service drops without finishing it is collected and its entry
+    // purged on the next submission.
+    private final ConcurrentHashMap<Integer, RequestRef> mRequests = new ConcurrentHashMap<>();
+    private final ReferenceQueue<ServiceRequest> mCollectedRequests = new ReferenceQueue<>();
+    private final ServiceRequest.OnFinishedListener mOnRequestFinished
+            = new ServiceRequest.OnFinishedListener() {
+        @Override
+        public void onFinished(ServiceRequest request) {
+            final int requestId = request.getRequestInfo().hashCode();
+            final RequestRef ref = mRequests.get(requestId);
+            if (ref != null && ref.get() == request) {
+                mRequests.remove(requestId, ref);
+            }
+        }
+    };
+
+    private static final class RequestRef extends WeakReference<ServiceRequest> {
+        final int requestId;
+
+        RequestRef(ServiceRequest request, ReferenceQueue<ServiceRequest> queue) {
+            super(request, queue);
+            requestId = request.getRequestInfo().hashCode();
+        }
+    }
 
     /**
      * The {@link android.content.Intent} action that must be declared as handled by a service in
@@ -96,6 +124,15 @@ public abstract class WeatherProviderService extends Service {
             mHandler.obtainMessage(ServiceHandler.MSG_ON_NEW_REQUEST, info).sendToTarget();
         }
 
+        @Override
+        public void processWeatherUpdateRequests(final List<RequestInfo> infos) {
+            if (infos == null || infos.isEmpty()) {
+                return;
+            }
+            mHandler.obtainMessage(ServiceHandler.MSG_ON_NEW_REQUESTS,
+                    infos.toArray(new RequestInfo[infos.size()])).sendToTarget();
+        }
+
         @Override
         public void processCityNameLookupRequest(final RequestInfo info) {
             mHandler.obtainMessage(ServiceHandler.MSG_ON_NEW_REQUEST, info).sendToTarget();
@@ -108,30 +145,28 @@ public abstract class WeatherProviderService extends Service {
 
         @Override
         public void cancelOngoingRequests() {
-            synchronized (mWeakRequestsSet) {
-                for (final ServiceRequest request : mWeakRequestsSet) {
-                    request.cancel();
-                    mWeakRequestsSet.remove(request);
-                    mHandler.obtainMessage(ServiceHandler.MSG_CANCEL_REQUEST, request)
-                            .sendToTarget();
+            for (Map.Entry<Integer, RequestRef> entry : mRequests.entrySet()) {
+                final RequestRef ref = entry.getValue();
+                final ServiceRequest request = ref.get();
+                if (mRequests.remove(entry.getKey(), ref) && request != null) {
+                    cancel(request);
                 }
             }
         }
 
         @Override
         public void cancelRequest(int requestId) {
-            synchronized (mWeakRequestsSet) {
-                for (final ServiceRequest request : mWeakRequestsSet) {
-                    if (request.getRequestInfo().hashCode() == requestId) {
-                        mWeakRequestsSet.remove(request);
-                        request.cancel();
-                        mHandler.obtainMessage(ServiceHandler.MSG_CANCEL_REQUEST, request)
-                                .sendToTarget();
-                        break;
-                    }
-                }
+            final RequestRef ref = mRequests.remove(requestId);
+            final ServiceRequest request = ref != null ? ref.get() : null;
+            if (request != null) {
+                cancel(request);
             }
         }
+
+        private void cancel(ServiceRequest request) {
+            request.cancel();
+            mHandler.obtainMessage(ServiceHandler.MSG_CANCEL_REQUEST, request).sendToTarget();
+        }
     };
 
     private class ServiceHandler extends Handler {
@@ -142,6 +177,7 @@ public abstract class WeatherProviderService extends Service {
         public static final int MSG_SET_CLIENT = 1;
         public static final int MSG_ON_NEW_REQUEST = 2;
         public static final int MSG_CANCEL_REQUEST = 3;
+        public static final int MSG_ON_NEW_REQUESTS = 4;
 
         @Override
         public void handleMessage(Message msg) {
@@ -149,6 +185,11 @@ public abstract class WeatherProviderService extends Service {
                 case MSG_SET_CLIENT: {
                     mClient = (IWeatherProviderServiceClient) msg.obj;
                     if (mClient != null) {
+                        try {
+                            mClient.setBatchRequestsSupported(true);
+                            mClient.setCityLookupPrefixMatching(matchesCityLookupByPrefix());
+                        } catch (RemoteException e) {
+                        }
                         onConnected();
                     } else {
                         onDisconnected();
@@ -158,11 +199,20 @@ public abstract class WeatherProviderService extends Service {
                 case MSG_ON_NEW_REQUEST: {
                     RequestInfo info = (RequestInfo) msg.obj;
                     if (info != null) {
-                        ServiceRequest request = new ServiceRequest(info, mClient);
-                        synchronized (mWeakRequestsSet) {
-                            mWeakRequestsSet.add(request);
+                        onRequestSubmitted(addRequest(info));
+                    }
+                    return;
+                }
+                case MSG_ON_NEW_REQUESTS: {
+                    RequestInfo[] infos = (RequestInfo[]) msg.obj;
+                    List<ServiceRequest> requests = new ArrayList<>(infos.length);
+                    for (RequestInfo info : infos) {
+                        if (info != null) {
+                            requests.add(addRequest(info));
                         }
-                        onRequestSubmitted(request);
+                    }
+                    if (!requests.isEmpty()) {
+                        onRequestsSubmitted(requests);
                     }
                     return;
                 }
@@ -175,6 +225,16 @@ public abstract class WeatherProviderService extends Service {
         }
     }
 
+    private ServiceRequest addRequest(RequestInfo info) {
+        RequestRef collected;
+        while ((collected = (RequestRef) mCollectedRequests.poll()) != null) {
+            mRequests.remove(collected.requestId, collected);
+        }
+        final ServiceRequest request = new ServiceRequest(info, mClient, mOnRequestFinished);
+        mRequests.put(info.hashCode(), new RequestRef(request, mCollectedRequests));
+        return request;
+    }
+
     /**
      * The system has connected to this service.
      */
@@ -195,6 +255,32 @@ public abstract class WeatherProviderService extends Service {
      */
     protected abstract void onRequestSubmitted(ServiceRequest request);
 
+    /**
+     * Several weather update requests have been submitted to this service at once. Services
+     * able to query weather data for multiple locations in a single round-trip should override
+     * this method. The default implementation calls {@link #onRequestSubmitted(ServiceRequest)}
+     * for each request.
+     * @param requests The service requests to be processed by this service, each of them must
+     *                 be completed individually
+     */
+    protected void onRequestsSubmitted(List<ServiceRequest> requests) {
+        for (ServiceRequest request : requests) {
+            onRequestSubmitted(request);
+        }
+    }
+
+    /**
+     * Whether city name lookups of this service only return locations whose city name starts
+     * with the query, and return all of them when there are fewer than ten. The system can then
+     * answer a longer query from the results of a shorter one without submitting a request.
+     * Services matching on anything else, such as substrings, alternate names or fuzzy matches,
+     * must return false. The default implementation returns false.
+     * @return true if city name lookups only match by prefix
+     */
+    protected boolean matchesCityLookupByPrefix() {
+        return false;
+    }
+
     /**
      * Called when the system is not interested on this request anymore. Note that the service
      * <b>has marked the request as cancelled</b> and you must stop any ongoing operation
@@ -0,0 +1,116 @@
+/*
+ * Copyright (C) 2020 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lineageos.internal.util;
+
+/**
+ * Decides whether the ambient light is above or below a threshold, based
+ * on the average of the readings over a sliding window. Once above, the
+ * average has to drop below the threshold minus the hysteresis before the
+ * state goes back down, so readings hovering around the threshold don't
+ * cause the state to flap.
+ *
+ * This only does the math. The caller feeds it readings and the time, and
+ * re-evaluates it after {@link #getRecheckDelay()}, since the average keeps
+ * moving as old readings leave the window even if the sensor has gone
+ * quiet. Not thread safe.
+ */
+public final class AmbientLuxThreshold {
+
+    public static final int LOW = 0;
+    public static final int HIGH = 1;
+
+    private final float mThresholdLux;
+    private final float mHysteresisLux;
+    private final long mWindow;
+    private final TimedMovingAverageRingBuffer mRingBuffer;
+
+    private int mState = LOW;
+    private float mAmbientLux = 0.0f;
+
+    /**
+     * @param thresholdLux average above which the state is {@link #HIGH}
+     * @param hysteresisLux how far below the threshold the average has to
+     *                      drop to go back to {@link #LOW}
+     * @param window length of the averaging window, in the unit of the times
+     *               passed to {@link #add(long, float)}
+     * @param capacity maximum number of readings kept in the window
+     */
+    public AmbientLuxThreshold(float thresholdLux, float hysteresisLux,
+            long window, int capacity) {
+        mThresholdLux = thresholdLux;
+        mHysteresisLux = hysteresisLux;
+        mWindow = window;
+        mRingBuffer = new TimedMovingAverageRingBuffer(window, capacity);
+    }
+
+    /**
+     * Add a reading and re-evaluate the state.
+     *
+     * @return true if the state changed
+     */
+    public boolean add(long now, float lux) {
+        mRingBuffer.add(now, lux);
+        return evaluate(now);
+    }
+
+    /**
+     * Re-evaluate the state as of the given time without a new reading.
+     *
+     * @return true if the state changed
+     */
+    public boolean evaluate(long now) {
+        mAmbientLux = mRingBuffer.getAverage(now);
+
+        final float threshold = mState == HIGH
+                ? mThresholdLux - mHysteresisLux : mThresholdLux;
+        final int state = mAmbientLux >= threshold ? HIGH : LOW;
+        if (state == mState) {
+            return false;
+        }
+        mState = state;
+        return true;
+    }
+
+    /**
+     * Returns how long after the last {@link #add(long, float)} or
+     * {@link #evaluate(long)} the state should be evaluated again, or -1 if
+     * it can't change before the next reading. While more than one reading
+     * is in the window, the average still moves as they expire, so the state
+     * is re-evaluated every half window until the window has drained.
+     */
+    public long getRecheckDelay() {
+        return mRingBuffer.size() > 1 ? mWindow / 2 : -1;
+    }
+
+    public int getState() {
+        return mState;
+    }
+
+    public float getAmbientLux() {
+        return mAmbientLux;
+    }
+
+    public void reset() {
+        mState = LOW;
+        mAmbientLux = 0.0f;
+        mRingBuffer.clear();
+    }
+
+    public String toString(long now) {
+        return "state=" + mState + " threshold=" + mThresholdLux
+                + " hysteresis=" + mHysteresisLux + " " + mRingBuffer.toString(now);
+    }
+}
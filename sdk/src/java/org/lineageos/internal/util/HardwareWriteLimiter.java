@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2020 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lineageos.internal.util;
+
+import android.os.SystemClock;
+
+import java.io.PrintWriter;
+import java.util.Arrays;
+
+/**
+ * Sits between a color animation and the display hardware. An animation
+ * produces a value every frame, but most of those are identical once
+ * quantized to the units the hardware takes, and the panel can't show them
+ * all anyway. Values equal to the last one written are dropped, and writes
+ * are spaced at least the given interval apart. The final value of an
+ * animation is always written.
+ *
+ * Frames are timed with {@link SystemClock#uptimeMillis()} unless the caller
+ * passes the time itself, which lets an animation be replayed against a
+ * virtual clock.
+ *
+ * @hide
+ */
+public final class HardwareWriteLimiter {
+
+    public interface Writer {
+        /**
+         * Write the quantized values to the hardware.
+         *
+         * @return true if the hardware accepted them
+         */
+        boolean write(int[] values);
+    }
+
+    private final String mName;
+    private final long mMinInterval;
+    private final Writer mWriter;
+
+    private final int[] mLastWritten;
+    private boolean mHasLastWritten;
+    private long mLastWriteTime;
+
+    private long mWritten;
+    private long mSuppressed;
+
+    public HardwareWriteLimiter(String name, int size, long minInterval, Writer writer) {
+        mName = name;
+        mMinInterval = minInterval;
+        mWriter = writer;
+        mLastWritten = new int[size];
+    }
+
+    /**
+     * Offer a value from an animation frame.
+     *
+     * @param values quantized values, may be reused by the caller
+     * @param last true for the final frame of the animation, which is
+     *             written regardless of the rate limit
+     */
+    public void update(int[] values, boolean last) {
+        update(values, last, SystemClock.uptimeMillis());
+    }
+
+    /**
+     * Offer a value from an animation frame shown at the given time.
+     *
+     * @see #update(int[], boolean)
+     */
+    public synchronized void update(int[] values, boolean last, long now) {
+        if (mHasLastWritten && Arrays.equals(values, mLastWritten)) {
+            mSuppressed++;
+            return;
+        }
+
+        if (!last && mHasLastWritten && now - mLastWriteTime < mMinInterval) {
+            mSuppressed++;
+            return;
+        }
+
+        if (mWriter.write(values)) {
+            System.arraycopy(values, 0, mLastWritten, 0, mLastWritten.length);
+            mHasLastWritten = true;
+        } else {
+            // Unknown state, don't filter the next one against it
+            mHasLastWritten = false;
+        }
+        mLastWriteTime = now;
+        mWritten++;
+    }
+
+    /**
+     * Set the value the hardware currently holds, as read back when an
+     * animation starts. Something else may have changed it behind our back.
+     */
+    public synchronized void seed(int[] values) {
+        System.arraycopy(values, 0, mLastWritten, 0, mLastWritten.length);
+        mHasLastWritten = true;
+        mLastWriteTime = 0;
+    }
+
+    public synchronized long getWritten() {
+        return mWritten;
+    }
+
+    public synchronized long getSuppressed() {
+        return mSuppressed;
+    }
+
+    public synchronized void dump(PrintWriter pw) {
+        pw.println("    " + mName + ": written=" + mWritten + " suppressed=" + mSuppressed
+                + " minInterval=" + mMinInterval
+                + " last=" + (mHasLastWritten ? Arrays.toString(mLastWritten) : "unknown"));
+    }
+}
@@ -0,0 +1,208 @@
+/*
+ * Copyright (C) 2020 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lineageos.internal.util;
+
+import android.util.ArrayMap;
+
+import java.io.PrintWriter;
+
+/**
+ * Debounces profile trigger state changes. A trigger state has to be
+ * stable for the settle time before it is acted upon, so a flapping WiFi
+ * or Bluetooth link collapses into at most one transition, and once a
+ * transition switched the profile, the next one waits until the new
+ * profile has been active for the minimum dwell time.
+ *
+ * This only does the bookkeeping. The caller reports trigger changes with
+ * {@link #schedule(long, int, String, int)}, and runs
+ * {@link #process(long, Callback)} at {@link #getNextProcessTime()}.
+ * Thread safe, the callback is invoked without holding the lock.
+ */
+public final class ProfileTriggerDebouncer {
+
+    /**
+     * Acts upon a settled trigger transition.
+     */
+    public interface Callback {
+        /**
+         * @return true if the transition switched the active profile
+         */
+        boolean onTriggerSettled(int type, String id, int state);
+    }
+
+    private static final class PendingTrigger {
+        final int type;
+        final String id;
+        int state;
+        long settleTime;
+
+        PendingTrigger(int type, String id) {
+            this.type = type;
+            this.id = id;
+        }
+    }
+
+    private final long mSettleTime;
+    private final long mMinDwellTime;
+
+    private long mLastSwitchTime = -1;
+
+    // Trigger states waiting to settle, keyed by trigger type and id
+    private final ArrayMap<String, PendingTrigger> mPendingTriggers = new ArrayMap<>();
+    // Last trigger states that were acted upon, keyed by trigger type and id
+    private final ArrayMap<String, Integer> mSettledStates = new ArrayMap<>();
+
+    private int mProcessedTransitions;
+    private int mSuppressedTransitions;
+    private int mDwellDeferrals;
+    private int mProfileSwitches;
+
+    /**
+     * @param settleTime how long a trigger state has to be stable before it
+     *                   is acted upon, in milliseconds
+     * @param minDwellTime how long a trigger selected profile stays active
+     *                     before the next trigger switch, in milliseconds
+     */
+    public ProfileTriggerDebouncer(long settleTime, long minDwellTime) {
+        mSettleTime = settleTime;
+        mMinDwellTime = minDwellTime;
+    }
+
+    private static String getTriggerKey(int type, String id) {
+        return type + ":" + id;
+    }
+
+    /**
+     * Queue a trigger state change, replacing the one still settling for
+     * the same trigger.
+     */
+    public synchronized void schedule(long now, int type, String id, int state) {
+        final String key = getTriggerKey(type, id);
+        PendingTrigger pending = mPendingTriggers.get(key);
+        if (pending == null) {
+            pending = new PendingTrigger(type, id);
+            mPendingTriggers.put(key, pending);
+        } else {
+            // The previous state never settled
+            mSuppressedTransitions++;
+        }
+        pending.state = state;
+        pending.settleTime = now + mSettleTime;
+    }
+
+    /**
+     * Returns the time at which {@link #process(long, Callback)} should run
+     * next, or -1 if nothing is pending.
+     */
+    public synchronized long getNextProcessTime() {
+        if (mPendingTriggers.isEmpty()) {
+            return -1;
+        }
+        long nextTime = Long.MAX_VALUE;
+        for (int i = 0; i < mPendingTriggers.size(); i++) {
+            nextTime = Math.min(nextTime, mPendingTriggers.valueAt(i).settleTime);
+        }
+        if (mLastSwitchTime >= 0) {
+            nextTime = Math.max(nextTime, mLastSwitchTime + mMinDwellTime);
+        }
+        return nextTime;
+    }
+
+    /**
+     * Hand the triggers which have settled by now to the callback, until
+     * one of them switches the profile. The remaining ones wait for the
+     * dwell time of the new profile.
+     */
+    public void process(long now, Callback callback) {
+        PendingTrigger pending;
+        while ((pending = poll(now)) != null) {
+            if (callback.onTriggerSettled(pending.type, pending.id, pending.state)) {
+                synchronized (this) {
+                    mProfileSwitches++;
+                    mLastSwitchTime = now;
+                }
+                break;
+            }
+        }
+    }
+
+    /**
+     * Take the next trigger whose state has settled and changed since it
+     * was last acted upon, or null if there is none or the active profile
+     * has not dwelled long enough yet.
+     */
+    private synchronized PendingTrigger poll(long now) {
+        if (mLastSwitchTime >= 0 && now < mLastSwitchTime + mMinDwellTime) {
+            if (!mPendingTriggers.isEmpty()) {
+                mDwellDeferrals++;
+            }
+            return null;
+        }
+        for (int i = mPendingTriggers.size() - 1; i >= 0; i--) {
+            final PendingTrigger pending = mPendingTriggers.valueAt(i);
+            if (pending.settleTime > now) {
+                continue;
+            }
+            mPendingTriggers.removeAt(i);
+
+            final String key = getTriggerKey(pending.type, pending.id);
+            final Integer lastState = mSettledStates.put(key, pending.state);
+            if (lastState != null && lastState == pending.state) {
+                // Flapped back to where it was, nothing to do
+                mSuppressedTransitions++;
+                continue;
+            }
+
+            mProcessedTransitions++;
+            return pending;
+        }
+        return null;
+    }
+
+    /**
+     * Drop the triggers which are still settling.
+     */
+    public synchronized void clear() {
+        mPendingTriggers.clear();
+    }
+
+    public synchronized int getProcessedTransitions() {
+        return mProcessedTransitions;
+    }
+
+    public synchronized int getSuppressedTransitions() {
+        return mSuppressedTransitions;
+    }
+
+    public synchronized int getDwellDeferrals() {
+        return mDwellDeferrals;
+    }
+
+    public synchronized int getProfileSwitches() {
+        return mProfileSwitches;
+    }
+
+    public synchronized void dump(PrintWriter pw, String prefix) {
+        pw.println(prefix + "Settle time: " + mSettleTime + "ms");
+        pw.println(prefix + "Minimum dwell time: " + mMinDwellTime + "ms");
+        pw.println(prefix + "Processed transitions: " + mProcessedTransitions);
+        pw.println(prefix + "Suppressed transitions: " + mSuppressedTransitions);
+        pw.println(prefix + "Dwell deferrals: " + mDwellDeferrals);
+        pw.println(prefix + "Profile switches: " + mProfileSwitches);
+        pw.println(prefix + "Pending triggers: " + mPendingTriggers.keySet());
+        pw.println(prefix + "Settled triggers: " + mSettledStates);
+    }
+}
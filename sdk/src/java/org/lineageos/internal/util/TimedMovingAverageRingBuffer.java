@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2020 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lineageos.internal.util;
+
+/**
+ * Calculates a simple moving average based on a fixed
+ * duration sliding window. This is useful for dampening
+ * erratic sensors and rolling thru transitional periods
+ * smoothly.
+ *
+ * Samples are kept in preallocated primitive arrays, so adding
+ * samples never allocates. When the buffer is full the oldest
+ * sample is dropped, even if it is still within the window.
+ */
+public final class TimedMovingAverageRingBuffer {
+
+    private final long[] mTimestamps;
+    private final float[] mValues;
+    private final long mPeriod;
+
+    // Index of the oldest sample
+    private int mHead = 0;
+    private int mSize = 0;
+    private double mTotal = 0.0;
+
+    /**
+     * @param period length of the window, in the unit of the timestamps passed to
+     *               {@link #add(long, float)}
+     * @param capacity maximum number of samples kept
+     */
+    public TimedMovingAverageRingBuffer(long period, int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Capacity must be positive");
+        }
+        mPeriod = period;
+        mTimestamps = new long[capacity];
+        mValues = new float[capacity];
+    }
+
+    public synchronized void add(long now, float sample) {
+        expire(now);
+        if (sample == 0.0f && mSize == 0) {
+            return;
+        }
+        if (mSize == mValues.length) {
+            mTotal -= mValues[mHead];
+            mHead = next(mHead);
+            mSize--;
+        }
+        final int tail = (mHead + mSize) % mValues.length;
+        mTimestamps[tail] = now;
+        mValues[tail] = sample;
+        mSize++;
+        mTotal += sample;
+    }
+
+    public synchronized int size() {
+        return mSize;
+    }
+
+    public int capacity() {
+        return mValues.length;
+    }
+
+    public synchronized float getAverage(long now) {
+        expire(now);
+        return mSize == 0 ? 0.0f : (float) (mTotal / mSize);
+    }
+
+    public synchronized void clear() {
+        mHead = 0;
+        mSize = 0;
+        mTotal = 0.0;
+    }
+
+    private void expire(long now) {
+        while (mSize > 1 && (now - mTimestamps[mHead]) > mPeriod) {
+            mTotal -= mValues[mHead];
+            mHead = next(mHead);
+            mSize--;
+        }
+        if (mSize == 1) {
+            // Don't let rounding errors accumulate in the running total
+            mTotal = mValues[mHead];
+        }
+    }
+
+    private int next(int index) {
+        return index + 1 == mValues.length ? 0 : index + 1;
+    }
+
+    public synchronized String toString(long now) {
+        expire(now);
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < mSize; i++) {
+            final int index = (mHead + i) % mValues.length;
+            if (sb.length() > 0) {
+                sb.append(", ");
+            }
+            sb.append("(").append(mValues[index]).append(", ")
+                    .append(mTimestamps[index]).append(")");
+        }
+        return "average=" + getAverage(now) + " length=" + mSize +
+               " mRing=[" + sb.toString() + "]";
+    }
+}
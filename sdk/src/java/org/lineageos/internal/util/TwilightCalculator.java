@@ -14,7 +14,7 @@
  * limitations under the License.
  */
 
-package org.lineageos.platform.internal.display;
+package org.lineageos.internal.util;
 
 import android.text.format.DateUtils;
 import android.util.FloatMath;
@@ -120,4 +120,21 @@ public class TwilightCalculator {
         }
     }
 
+    /**
+     * Returns the index of the solar day {@link #calculateTwilight} uses for the given
+     * time and longitude, counted in days since 2000.
+     */
+    static long getSolarDay(long time, double longitude) {
+        final float daysSince2000 = (float) (time - UTC_2000) / DateUtils.DAY_IN_MILLIS;
+        return Math.round(daysSince2000 - J0 + longitude / 360);
+    }
+
+    /**
+     * Returns the approximate time of solar transit of the given solar day. Passing it to
+     * {@link #calculateTwilight} yields the twilight of that day.
+     */
+    static long getSolarTransit(long day, double longitude) {
+        return Math.round((day + J0 - longitude / 360) * DateUtils.DAY_IN_MILLIS) + UTC_2000;
+    }
+
 }
@@ -0,0 +1,203 @@
+/*
+ * Copyright (C) 2020 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lineageos.internal.util;
+
+import android.location.Location;
+import android.text.format.DateUtils;
+
+import java.io.PrintWriter;
+import java.text.DateFormat;
+import java.util.Date;
+
+/**
+ * Sunrise and sunset times for one location over a rolling window of days.
+ *
+ * The table is only rebuilt when the location moves by more than a
+ * threshold or the current day leaves the window, so a twilight update is
+ * normally a couple of array lookups rather than three trips through
+ * {@link TwilightCalculator}.
+ *
+ * The caller brings the table up to date with {@link #update(long, Location)},
+ * reads today's state from the getters, and arms its alarm whenever
+ * {@link #scheduleNextUpdate(long)} asks for it.
+ *
+ * @hide
+ */
+public final class TwilightSchedule {
+
+    // One day behind for yesterday's sunset, the rest ahead
+    private static final int DAYS = 7;
+    private static final int DAYS_BEHIND = 1;
+
+    private final float mMinDistance;
+    private final TwilightCalculator mCalculator = new TwilightCalculator();
+
+    private final long[] mSunrise = new long[DAYS];
+    private final long[] mSunset = new long[DAYS];
+    private final int[] mState = new int[DAYS];
+    private final float[] mDistance = new float[1];
+
+    private boolean mValid;
+    private long mFirstDay;
+    private double mLatitude;
+    private double mLongitude;
+    private int mRebuilds;
+
+    private int mToday = DAYS_BEHIND;
+    private boolean mIsNight;
+    private long mNextUpdate = -1;
+
+    /**
+     * @param minDistance distance in meters the location has to move before
+     *                    the table is recomputed
+     */
+    public TwilightSchedule(float minDistance) {
+        mMinDistance = minDistance;
+    }
+
+    /**
+     * Make sure the table covers yesterday, today and tomorrow for the given
+     * location, rebuilding it if needed, and work out the state at the given
+     * time.
+     */
+    public synchronized void update(long now, Location location) {
+        mToday = updateTable(now, location);
+
+        if (mSunrise[mToday] == -1 || mSunset[mToday] == -1) {
+            mIsNight = mState[mToday] == TwilightCalculator.NIGHT;
+        } else {
+            mIsNight = !(mSunrise[mToday] < now && mSunset[mToday] > now);
+        }
+    }
+
+    /**
+     * @return the index of today in the table
+     */
+    private int updateTable(long now, Location location) {
+        if (mValid) {
+            Location.distanceBetween(mLatitude, mLongitude,
+                    location.getLatitude(), location.getLongitude(), mDistance);
+            if (mDistance[0] > mMinDistance) {
+                mValid = false;
+            }
+        }
+
+        long today = TwilightCalculator.getSolarDay(now,
+                mValid ? mLongitude : location.getLongitude());
+        if (mValid && today - 1 >= mFirstDay && today + 1 < mFirstDay + DAYS) {
+            return (int) (today - mFirstDay);
+        }
+
+        mLatitude = location.getLatitude();
+        mLongitude = location.getLongitude();
+        today = TwilightCalculator.getSolarDay(now, mLongitude);
+        mFirstDay = today - DAYS_BEHIND;
+        for (int i = 0; i < DAYS; i++) {
+            mCalculator.calculateTwilight(
+                    TwilightCalculator.getSolarTransit(mFirstDay + i, mLongitude),
+                    mLatitude, mLongitude);
+            mSunrise[i] = mCalculator.mSunrise;
+            mSunset[i] = mCalculator.mSunset;
+            mState[i] = mCalculator.mState;
+        }
+        mValid = true;
+        mRebuilds++;
+        return DAYS_BEHIND;
+    }
+
+    /**
+     * Returns true if it was night at the time of the last {@link #update}.
+     */
+    public synchronized boolean isNight() {
+        return mIsNight;
+    }
+
+    public synchronized long getYesterdaySunset() {
+        return mSunset[mToday - 1];
+    }
+
+    public synchronized long getTodaySunrise() {
+        return mSunrise[mToday];
+    }
+
+    public synchronized long getTodaySunset() {
+        return mSunset[mToday];
+    }
+
+    public synchronized long getTomorrowSunrise() {
+        return mSunrise[mToday + 1];
+    }
+
+    /**
+     * Returns the time of the next sunrise or sunset after the given time, or -1
+     * if there is none in the table. Only valid after {@link #update}.
+     */
+    public synchronized long getNextTransition(long now) {
+        long next = -1;
+        for (int i = 0; i < DAYS; i++) {
+            if (mSunrise[i] > now && (next == -1 || mSunrise[i] < next)) {
+                next = mSunrise[i];
+            }
+            if (mSunset[i] > now && (next == -1 || mSunset[i] < next)) {
+                next = mSunset[i];
+            }
+        }
+        return next;
+    }
+
+    /**
+     * Work out when the state should be updated next, a minute after the next
+     * transition, or 12 hours from now if the day or night never ends.
+     *
+     * @return the time to arm the update alarm for, or -1 if it is already
+     *         armed for that time
+     */
+    public synchronized long scheduleNextUpdate(long now) {
+        long nextUpdate = getNextTransition(now);
+        if (nextUpdate == -1) {
+            nextUpdate = now + 12 * DateUtils.HOUR_IN_MILLIS;
+        } else {
+            // add some extra time to be on the safe side.
+            nextUpdate += DateUtils.MINUTE_IN_MILLIS;
+        }
+
+        if (nextUpdate == mNextUpdate) {
+            return -1;
+        }
+        mNextUpdate = nextUpdate;
+        return nextUpdate;
+    }
+
+    public synchronized int getRebuilds() {
+        return mRebuilds;
+    }
+
+    public synchronized void dump(PrintWriter pw) {
+        pw.println("    TwilightSchedule: valid=" + mValid + " rebuilds=" + mRebuilds
+                + " nextUpdate=" + mNextUpdate);
+        if (!mValid) {
+            return;
+        }
+        final DateFormat f = DateFormat.getDateTimeInstance();
+        for (int i = 0; i < DAYS; i++) {
+            pw.println("      day " + (mFirstDay + i) + ": "
+                    + (mSunrise[i] == -1 ? "polar "
+                            + (mState[i] == TwilightCalculator.NIGHT ? "night" : "day")
+                    : f.format(new Date(mSunrise[i])) + " - " + f.format(new Date(mSunset[i]))));
+        }
+    }
+}
@@ -18,8 +18,10 @@ include $(CLEAR_VARS)
 
 LOCAL_MODULE_TAGS := tests
 
+# Tests under src/org/lineageos/tests/internal also cover the hidden
+# org.lineageos.internal classes, so link the full platform library
 LOCAL_STATIC_JAVA_LIBRARIES := \
-    org.lineageos.platform.sdk \
+    org.lineageos.platform.internal \
     android-support-test \
     mockito-target
 
@@ -47,7 +49,9 @@ LOCAL_STATIC_JAVA_LIBRARIES := \
 
 LOCAL_DEX_PREOPT := false
 
-LOCAL_SRC_FILES := $(call all-subdir-java-files, src/)
+# Only the public SDK is linked here, leave out the internal tests
+LOCAL_SRC_FILES := $(filter-out src/org/lineageos/tests/internal/%, \
+    $(call all-subdir-java-files, src/))
 
 LOCAL_PACKAGE_NAME := CmtsPlatformSDKTests
 LOCAL_CERTIFICATE := platform
@@ -0,0 +1,181 @@
+/*
+ * Copyright (C) 2020 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lineageos.tests.internal.util;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+import android.util.Log;
+import org.lineageos.internal.util.AmbientLuxThreshold;
+
+import java.util.ArrayList;
+
+/**
+ * Replays ambient light traces through the outdoor mode threshold logic
+ * against a virtual clock, the same way AmbientLuxObserver drives it on a
+ * device: every reading is evaluated, and the state is re-evaluated
+ * whenever the threshold's recheck delay asks for it. Like the handler
+ * message, a pending recheck is only replaced, never cancelled.
+ */
+public class AmbientLuxReplayTest extends AndroidTestCase {
+
+    private static final String TAG = AmbientLuxReplayTest.class.getSimpleName();
+
+    // Defaults used by OutdoorModeController
+    private static final float THRESHOLD_LUX = 12000.0f;
+    private static final float HYSTERESIS_LUX = 1500.0f;
+    private static final int WINDOW_MS = 3000;
+    private static final int SENSOR_RATE_MS = 250;
+    private static final int CAPACITY = Math.max(16, 2 * WINDOW_MS / SENSOR_RATE_MS + 1);
+
+    private static final float INDOOR_LUX = 500.0f;
+    private static final float SUNLIGHT_LUX = 30000.0f;
+
+    /** What happened during a replay */
+    private static final class Result {
+        // time and new state of every transition, each one is a hardware write
+        final ArrayList<long[]> transitions = new ArrayList<long[]>();
+        // evaluations which didn't come from a reading
+        int wakeups;
+        long lastWakeup = -1;
+
+        int transitionCount() {
+            return transitions.size();
+        }
+
+        long firstTransitionTo(int state) {
+            for (long[] t : transitions) {
+                if (t[1] == state) {
+                    return t[0];
+                }
+            }
+            return -1;
+        }
+
+        @Override
+        public String toString() {
+            return "transitions=" + transitions.size() + " wakeups=" + wakeups
+                    + " lastWakeup=" + lastWakeup;
+        }
+    }
+
+    /**
+     * Replay a trace of { time, lux } readings, then let the clock run on
+     * until nothing is left to re-evaluate.
+     */
+    private static Result replay(long[][] trace) {
+        final AmbientLuxThreshold threshold = new AmbientLuxThreshold(
+                THRESHOLD_LUX, HYSTERESIS_LUX, WINDOW_MS, CAPACITY);
+        final Result result = new Result();
+        long recheck = -1;
+
+        for (int i = 0; i <= trace.length; i++) {
+            final long next = i < trace.length ? trace[i][0] : Long.MAX_VALUE;
+            while (recheck != -1 && recheck <= next) {
+                final long now = recheck;
+                recheck = -1;
+                result.wakeups++;
+                result.lastWakeup = now;
+                if (threshold.evaluate(now)) {
+                    result.transitions.add(new long[] { now, threshold.getState() });
+                }
+                recheck = reschedule(threshold, now, recheck);
+            }
+            if (i == trace.length) {
+                break;
+            }
+            if (threshold.add(next, trace[i][1])) {
+                result.transitions.add(new long[] { next, threshold.getState() });
+            }
+            recheck = reschedule(threshold, next, recheck);
+        }
+        Log.d(TAG, "replay: " + result);
+        return result;
+    }
+
+    /**
+     * Returns when the next recheck runs after an evaluation at the given
+     * time, as AmbientLuxObserver.updateState() would post it
+     */
+    private static long reschedule(AmbientLuxThreshold threshold, long now, long pending) {
+        final long delay = threshold.getRecheckDelay();
+        return delay >= 0 ? now + delay : pending;
+    }
+
+    /**
+     * Build a trace sampled at the sensor rate, from { duration, lux } segments
+     */
+    private static long[][] trace(float[][] segments) {
+        final ArrayList<long[]> trace = new ArrayList<long[]>();
+        long now = 0;
+        for (float[] segment : segments) {
+            final long end = now + (long) segment[0];
+            for (; now < end; now += SENSOR_RATE_MS) {
+                trace.add(new long[] { now, (long) segment[1] });
+            }
+        }
+        return trace.toArray(new long[0][]);
+    }
+
+    @SmallTest
+    public void testWalkOutside() {
+        final Result result = replay(trace(new float[][] {
+                { 10000, INDOOR_LUX }, { 20000, SUNLIGHT_LUX } }));
+        assertEquals(1, result.transitionCount());
+        final long latency = result.firstTransitionTo(AmbientLuxThreshold.HIGH) - 10000;
+        assertTrue("latency " + latency, latency >= 0 && latency <= WINDOW_MS);
+    }
+
+    @SmallTest
+    public void testWalkBackInside() {
+        final Result result = replay(trace(new float[][] {
+                { 10000, SUNLIGHT_LUX }, { 10000, INDOOR_LUX } }));
+        assertEquals(2, result.transitionCount());
+        final long latency = result.firstTransitionTo(AmbientLuxThreshold.LOW) - 10000;
+        assertTrue("latency " + latency, latency >= 0 && latency <= WINDOW_MS);
+    }
+
+    @SmallTest
+    public void testSpikeIgnored() {
+        final long[][] trace = trace(new float[][] { { 10000, INDOOR_LUX } });
+        trace[20][1] = 100000;
+        final Result result = replay(trace);
+        assertEquals(0, result.transitionCount());
+    }
+
+    @SmallTest
+    public void testNoFlappingAroundThreshold() {
+        // Clouds passing, readings either side of the threshold but within the hysteresis
+        final long[][] trace = trace(new float[][] { { 60000, 0 } });
+        for (int i = 0; i < trace.length; i++) {
+            trace[i][1] = (i / 4) % 2 == 0 ? 13000 : 11000;
+        }
+        final Result result = replay(trace);
+        assertTrue(result.toString(), result.transitionCount() <= 1);
+    }
+
+    @SmallTest
+    public void testGoesQuietWhenSensorSettles() {
+        // A light sensor only reports changes, so a steady room means no readings
+        final long[][] trace = new long[][] {
+                { 0, 400 }, { 250, 450 }, { 500, 500 }, { 750, 500 } };
+        final Result result = replay(trace);
+        assertEquals(0, result.transitionCount());
+        // Re-evaluations stop once the window has drained
+        assertTrue(result.toString(), result.wakeups <= 3);
+        assertTrue(result.toString(), result.lastWakeup <= 750 + WINDOW_MS + WINDOW_MS / 2);
+    }
+}
@@ -0,0 +1,255 @@
+/*
+ * Copyright (C) 2020 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lineageos.tests.internal.util;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+import android.util.Log;
+import org.lineageos.internal.util.HardwareWriteLimiter;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Replays LiveDisplay color animations frame by frame against a virtual
+ * clock, the same way DisplayHardwareController and
+ * ColorTemperatureController drive them on a device: every frame is
+ * quantized and offered to the write limiter, which hands what it lets
+ * through to a fake HAL that logs each write.
+ *
+ * The controllers themselves stay on the device, as they are bound to the
+ * Context, the Handler, ValueAnimator and LineageHardwareManager. What runs
+ * here is the frame math they use and the limiter they share, together with
+ * the lux threshold and twilight schedule replayed by the neighbouring tests.
+ */
+public class ColorAnimationReplayTest extends AndroidTestCase {
+
+    private static final String TAG = ColorAnimationReplayTest.class.getSimpleName();
+
+    // config_liveDisplayMinWriteInterval
+    private static final long MIN_INTERVAL = 32;
+    // One frame per vsync at 60Hz
+    private static final long FRAME_MS = 16;
+    private static final long START = 10000;
+
+    // Calibration range of the legacy hardware implementation
+    private static final int MAX_COLOR = 255;
+
+    /** Logs every write that reaches the hardware */
+    private static final class FakeHal implements HardwareWriteLimiter.Writer {
+        // time and values of every write
+        final ArrayList<long[]> writes = new ArrayList<long[]>();
+        long now;
+        int failures;
+
+        @Override
+        public boolean write(int[] values) {
+            final long[] write = new long[values.length + 1];
+            write[0] = now;
+            for (int i = 0; i < values.length; i++) {
+                write[i + 1] = values[i];
+            }
+            writes.add(write);
+            if (failures > 0) {
+                failures--;
+                return false;
+            }
+            return true;
+        }
+
+        int[] lastValues() {
+            final long[] write = writes.get(writes.size() - 1);
+            final int[] values = new int[write.length - 1];
+            for (int i = 0; i < values.length; i++) {
+                values[i] = (int) write[i + 1];
+            }
+            return values;
+        }
+    }
+
+    /** What happened during a replay */
+    private static final class Result {
+        final FakeHal hal;
+        final HardwareWriteLimiter limiter;
+        final long duration;
+        int frames;
+
+        Result(FakeHal hal, HardwareWriteLimiter limiter, long duration) {
+            this.hal = hal;
+            this.limiter = limiter;
+            this.duration = duration;
+        }
+
+        @Override
+        public String toString() {
+            return "duration=" + duration + " frames=" + frames + " writes=" + hal.writes.size()
+                    + " suppressed=" + limiter.getSuppressed();
+        }
+    }
+
+    /** Produces the quantized values of an animation at a given fraction */
+    private interface Frames {
+        void valuesAt(float fraction, int[] out);
+    }
+
+    /**
+     * Run an animation of the given duration, one frame per vsync starting at
+     * fraction 0, until the frame that reaches the end.
+     */
+    private static Result replay(long duration, int[] current, Frames frames,
+            long minInterval, int failures) {
+        final FakeHal hal = new FakeHal();
+        hal.failures = failures;
+        final HardwareWriteLimiter limiter = new HardwareWriteLimiter("replay",
+                current.length, minInterval, hal);
+        final Result result = new Result(hal, limiter, duration);
+
+        // Reused for every frame, like the controllers do
+        final int[] values = Arrays.copyOf(current, current.length);
+        limiter.seed(values);
+        for (long t = 0; ; t += FRAME_MS) {
+            final float fraction = duration == 0 ? 1.0f : Math.min(1.0f, (float) t / duration);
+            final boolean last = fraction >= 1.0f;
+            frames.valuesAt(fraction, values);
+            hal.now = START + t;
+            limiter.update(values, last, hal.now);
+            result.frames++;
+            if (last) {
+                break;
+            }
+        }
+        Log.d(TAG, "replay: " + result);
+        return result;
+    }
+
+    /**
+     * Mirrors DisplayHardwareController.animateDisplayColor(): linear, 750ms
+     * for the full range, scaled by the largest channel delta
+     */
+    private static Result replayCalibration(int[] current, final float[] target,
+            long minInterval) {
+        final float[] from = new float[3];
+        float maxDelta = 0;
+        for (int i = 0; i < 3; i++) {
+            from[i] = (float) current[i] / (float) MAX_COLOR;
+            maxDelta = Math.max(maxDelta, Math.abs(from[i] - target[i]));
+        }
+        return replay((long) (750 * maxDelta), current, new Frames() {
+            @Override
+            public void valuesAt(float fraction, int[] out) {
+                for (int i = 0; i < 3; i++) {
+                    out[i] = (int) ((from[i] + (target[i] - from[i]) * fraction) * MAX_COLOR);
+                }
+            }
+        }, minInterval, 0);
+    }
+
+    /**
+     * Mirrors ColorTemperatureController.animateColorBalance(): accelerate
+     * and decelerate, 5ms per step
+     */
+    private static Result replayColorBalance(final int current, final int balance,
+            long minInterval) {
+        return replay(5 * Math.abs(current - balance), new int[] { current }, new Frames() {
+            @Override
+            public void valuesAt(float fraction, int[] out) {
+                // AccelerateDecelerateInterpolator, then IntEvaluator
+                final float interpolated =
+                        (float) (Math.cos((fraction + 1) * Math.PI) / 2.0f) + 0.5f;
+                out[0] = (int) (current + interpolated * (balance - current));
+            }
+        }, minInterval, 0);
+    }
+
+    private static void assertSpacedWrites(Result result, long minInterval) {
+        final ArrayList<long[]> writes = result.hal.writes;
+        // The final frame is written regardless of the spacing
+        for (int i = 1; i < writes.size() - 1; i++) {
+            assertTrue(result.toString(), writes.get(i)[0] - writes.get(i - 1)[0] >= minInterval);
+        }
+        assertTrue(result.toString(),
+                writes.size() <= result.duration / minInterval + 2);
+        assertEquals(result.toString(), result.frames,
+                result.limiter.getWritten() + result.limiter.getSuppressed());
+    }
+
+    private static void assertNoRepeatedWrites(Result result) {
+        final ArrayList<long[]> writes = result.hal.writes;
+        for (int i = 1; i < writes.size(); i++) {
+            final long[] previous = Arrays.copyOfRange(writes.get(i - 1), 1,
+                    writes.get(i - 1).length);
+            final long[] current = Arrays.copyOfRange(writes.get(i), 1, writes.get(i).length);
+            assertFalse(result.toString(), Arrays.equals(previous, current));
+        }
+    }
+
+    @SmallTest
+    public void testCalibrationWritesAtMostOncePerInterval() {
+        final float[] target = { 1.0f, 0.8f, 0.6f };
+        final Result result = replayCalibration(new int[] { 255, 255, 255 }, target,
+                MIN_INTERVAL);
+        assertSpacedWrites(result, MIN_INTERVAL);
+        // Every other frame at 60Hz
+        assertTrue(result.toString(), result.hal.writes.size() <= result.frames / 2 + 1);
+        assertTrue(result.toString(), Arrays.equals(new int[] { 255, 204, 153 },
+                result.hal.lastValues()));
+    }
+
+    @SmallTest
+    public void testSmallCalibrationChangeWritesOnce() {
+        // Short enough to be over after a frame, the first frame is what the
+        // hardware already holds
+        final Result result = replayCalibration(new int[] { 255, 255, 255 },
+                new float[] { 250 / 255.0f, 1.0f, 1.0f }, MIN_INTERVAL);
+        assertEquals(result.toString(), 2, result.frames);
+        assertEquals(result.toString(), 1, result.hal.writes.size());
+        assertTrue(result.toString(), Arrays.equals(new int[] { 250, 255, 255 },
+                result.hal.lastValues()));
+    }
+
+    @SmallTest
+    public void testColorBalanceSkipsRepeatedSteps() {
+        // Without the rate limit only the frames which round to a new step are written
+        final Result result = replayColorBalance(0, -40, 0);
+        assertNoRepeatedWrites(result);
+        assertTrue(result.toString(), result.limiter.getSuppressed() > 0);
+        assertEquals(result.toString(), -40, result.hal.lastValues()[0]);
+    }
+
+    @SmallTest
+    public void testColorBalanceWritesAtMostOncePerInterval() {
+        final Result result = replayColorBalance(-40, 60, MIN_INTERVAL);
+        assertEquals(result.toString(), 500, result.duration);
+        assertSpacedWrites(result, MIN_INTERVAL);
+        assertNoRepeatedWrites(result);
+        assertEquals(result.toString(), 60, result.hal.lastValues()[0]);
+    }
+
+    @SmallTest
+    public void testFailedWriteIsRetried() {
+        // The hardware rejects the first write, so its state is unknown and
+        // the next frame is written even if it rounds to the same value
+        final Result failing = replay(20, new int[] { 0 }, new Frames() {
+            @Override
+            public void valuesAt(float fraction, int[] out) {
+                out[0] = fraction < 1.0f ? 1 : 4;
+            }
+        }, 0, 1);
+        assertEquals(failing.toString(), failing.frames, failing.hal.writes.size());
+        assertEquals(failing.toString(), 4, failing.hal.lastValues()[0]);
+    }
+}
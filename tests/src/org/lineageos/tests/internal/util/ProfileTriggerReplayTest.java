@@ -0,0 +1,251 @@
+/*
+ * Copyright (C) 2020 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lineageos.tests.internal.util;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+import android.util.Log;
+import lineageos.app.Profile;
+import org.lineageos.internal.util.ProfileTriggerDebouncer;
+
+import java.util.ArrayList;
+
+/**
+ * Replays scripted WiFi and Bluetooth trigger sequences through the profile
+ * trigger debouncer against a virtual clock, the same way
+ * ProfileTriggerHelper drives it on a device, and checks which transitions
+ * reach the callback and when. This covers the debouncer only, the
+ * callback resolves settled triggers against real profiles just enough to
+ * tell the debouncer whether a switch happened.
+ */
+public class ProfileTriggerReplayTest extends AndroidTestCase {
+
+    private static final String TAG = ProfileTriggerReplayTest.class.getSimpleName();
+
+    // Defaults from config_profileTriggerSettleTime and config_profileTriggerMinDwellTime
+    private static final long SETTLE_TIME_MS = 2000;
+    private static final long MIN_DWELL_TIME_MS = 15000;
+
+    private static final String HOME_SSID = "home";
+    private static final String CAR_ADDRESS = "00:11:22:33:44:55";
+
+    private static final int CONNECT = Profile.TriggerState.ON_CONNECT;
+    private static final int DISCONNECT = Profile.TriggerState.ON_DISCONNECT;
+
+    private Profile mDefault;
+    private Profile mHome;
+    private Profile mCar;
+
+    private static final class Event {
+        final long time;
+        final int type;
+        final String id;
+        final int state;
+
+        Event(long time, int type, String id, int state) {
+            this.time = time;
+            this.type = type;
+            this.id = id;
+            this.state = state;
+        }
+    }
+
+    private static Event wifi(long time, int state) {
+        return new Event(time, Profile.TriggerType.WIFI, HOME_SSID, state);
+    }
+
+    private static Event bluetooth(long time, int state) {
+        return new Event(time, Profile.TriggerType.BLUETOOTH, CAR_ADDRESS, state);
+    }
+
+    /**
+     * Records every settled transition handed over by the debouncer, and
+     * switches to the first other profile the trigger state selects.
+     */
+    private static final class Recorder implements ProfileTriggerDebouncer.Callback {
+        final Profile[] profiles;
+        Profile active;
+        long now;
+
+        // time and state of every transition that reached the callback
+        final ArrayList<long[]> settled = new ArrayList<long[]>();
+        // time and profile of every switch
+        final ArrayList<Object[]> switches = new ArrayList<Object[]>();
+
+        Recorder(Profile[] profiles, Profile active) {
+            this.profiles = profiles;
+            this.active = active;
+        }
+
+        @Override
+        public boolean onTriggerSettled(int type, String id, int state) {
+            settled.add(new long[] { now, state });
+            for (Profile p : profiles) {
+                if (p.getTriggerState(type, id) == state
+                        && !active.getUuid().equals(p.getUuid())) {
+                    active = p;
+                    switches.add(new Object[] { now, p });
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        long switchTime(int index) {
+            return (Long) switches.get(index)[0];
+        }
+
+        Profile switchProfile(int index) {
+            return (Profile) switches.get(index)[1];
+        }
+
+        @Override
+        public String toString() {
+            return "settled=" + settled.size() + " switches=" + switches.size()
+                    + " active=" + active.getName();
+        }
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDefault = new Profile("Default");
+        mHome = new Profile("Home");
+        mHome.setTrigger(Profile.TriggerType.WIFI, HOME_SSID, CONNECT, HOME_SSID);
+        mCar = new Profile("Car");
+        mCar.setTrigger(Profile.TriggerType.BLUETOOTH, CAR_ADDRESS, CONNECT, "car");
+    }
+
+    /**
+     * Replay the events, running the debouncer whenever ProfileTriggerHelper
+     * would have posted it, then let the clock run on until nothing is pending.
+     */
+    private Recorder replay(ProfileTriggerDebouncer debouncer, Event... events) {
+        final Recorder recorder = new Recorder(
+                new Profile[] { mDefault, mHome, mCar }, mDefault);
+        for (int i = 0; i <= events.length; i++) {
+            final long next = i < events.length ? events[i].time : Long.MAX_VALUE;
+            long processTime;
+            while ((processTime = debouncer.getNextProcessTime()) >= 0 && processTime <= next) {
+                recorder.now = processTime;
+                debouncer.process(processTime, recorder);
+            }
+            if (i == events.length) {
+                break;
+            }
+            debouncer.schedule(next, events[i].type, events[i].id, events[i].state);
+        }
+        Log.d(TAG, "replay: " + recorder);
+        return recorder;
+    }
+
+    private static ProfileTriggerDebouncer newDebouncer() {
+        return new ProfileTriggerDebouncer(SETTLE_TIME_MS, MIN_DWELL_TIME_MS);
+    }
+
+    /**
+     * Build a sequence alternating between connect and disconnect every period,
+     * starting with a connect, over the given number of events
+     */
+    private static Event[] flap(int type, long start, long period, int count) {
+        final Event[] events = new Event[count];
+        for (int i = 0; i < count; i++) {
+            final int state = i % 2 == 0 ? CONNECT : DISCONNECT;
+            events[i] = type == Profile.TriggerType.WIFI
+                    ? wifi(start + i * period, state) : bluetooth(start + i * period, state);
+        }
+        return events;
+    }
+
+    @SmallTest
+    public void testConnectSwitchesAfterSettleTime() {
+        final Recorder result = replay(newDebouncer(), wifi(1000, CONNECT));
+        assertEquals(1, result.switches.size());
+        assertSame(mHome, result.switchProfile(0));
+        assertEquals(1000 + SETTLE_TIME_MS, result.switchTime(0));
+        assertEquals(1, result.settled.size());
+    }
+
+    @SmallTest
+    public void testFlappingWifiCollapsesIntoOneSwitch() {
+        final ProfileTriggerDebouncer debouncer = newDebouncer();
+        // 21 events, 500ms apart, ending connected
+        final Recorder result = replay(debouncer,
+                flap(Profile.TriggerType.WIFI, 0, 500, 21));
+        assertEquals(result.toString(), 1, result.switches.size());
+        assertSame(mHome, result.switchProfile(0));
+        // The switch happens one settle time after the link stopped flapping
+        assertEquals(10000 + SETTLE_TIME_MS, result.switchTime(0));
+        assertEquals(1, result.settled.size());
+        assertEquals(20, debouncer.getSuppressedTransitions());
+        assertEquals(1, debouncer.getProcessedTransitions());
+    }
+
+    @SmallTest
+    public void testFlapBackToSettledStateIsIgnored() {
+        final ProfileTriggerDebouncer debouncer = newDebouncer();
+        final Recorder result = replay(debouncer,
+                wifi(0, CONNECT), wifi(30000, DISCONNECT), wifi(30400, CONNECT));
+        assertEquals(1, result.switches.size());
+        // The flap back to connected never reaches the callback
+        assertEquals(1, result.settled.size());
+        assertEquals(1, debouncer.getProcessedTransitions());
+        assertEquals(2, debouncer.getSuppressedTransitions());
+    }
+
+    @SmallTest
+    public void testSecondSwitchWaitsForMinimumDwell() {
+        final ProfileTriggerDebouncer debouncer = newDebouncer();
+        final Recorder result = replay(debouncer,
+                wifi(0, CONNECT), bluetooth(3000, CONNECT));
+        assertEquals(result.toString(), 2, result.switches.size());
+        assertSame(mHome, result.switchProfile(0));
+        assertSame(mCar, result.switchProfile(1));
+        assertEquals(SETTLE_TIME_MS + MIN_DWELL_TIME_MS, result.switchTime(1));
+        assertTrue(result.switchTime(1) - result.switchTime(0) >= MIN_DWELL_TIME_MS);
+        assertEquals(2, result.settled.size());
+    }
+
+    @SmallTest
+    public void testFlappingHeadsetWhileHome() {
+        final ArrayList<Event> events = new ArrayList<Event>();
+        events.add(wifi(0, CONNECT));
+        // The car stereo drops in and out while pulling out of the driveway
+        for (Event event : flap(Profile.TriggerType.BLUETOOTH, 20000, 300, 11)) {
+            events.add(event);
+        }
+        final ProfileTriggerDebouncer debouncer = newDebouncer();
+        final Recorder result = replay(debouncer, events.toArray(new Event[0]));
+        assertEquals(result.toString(), 2, result.switches.size());
+        assertSame(mCar, result.switchProfile(1));
+        // One settle time after the last connect, the flapping never got through
+        assertEquals(23000 + SETTLE_TIME_MS, result.switchTime(1));
+        assertEquals(2, result.settled.size());
+        assertEquals(0, debouncer.getDwellDeferrals());
+    }
+
+    @SmallTest
+    public void testClearDropsSettlingTriggers() {
+        final ProfileTriggerDebouncer debouncer = newDebouncer();
+        debouncer.schedule(0, Profile.TriggerType.WIFI, HOME_SSID, CONNECT);
+        assertEquals(SETTLE_TIME_MS, debouncer.getNextProcessTime());
+        debouncer.clear();
+        assertEquals(-1, debouncer.getNextProcessTime());
+        final Recorder result = replay(debouncer);
+        assertEquals(0, result.switches.size());
+    }
+}
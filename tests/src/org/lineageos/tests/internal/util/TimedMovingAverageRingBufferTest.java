@@ -0,0 +1,160 @@
+/*
+ * Copyright (C) 2020 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lineageos.tests.internal.util;
+
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.test.suitebuilder.annotation.SmallTest;
+import android.util.Log;
+import org.lineageos.internal.util.TimedMovingAverageRingBuffer;
+
+public class TimedMovingAverageRingBufferTest extends AndroidTestCase {
+
+    private static final String TAG = TimedMovingAverageRingBufferTest.class.getSimpleName();
+
+    private static final long PERIOD = 1000;
+    private static final float DELTA = 0.0001f;
+
+    @SmallTest
+    public void testEmpty() {
+        TimedMovingAverageRingBuffer buffer = new TimedMovingAverageRingBuffer(PERIOD, 4);
+        assertEquals(0, buffer.size());
+        assertEquals(0.0f, buffer.getAverage(0), DELTA);
+    }
+
+    @SmallTest
+    public void testLeadingZerosIgnored() {
+        TimedMovingAverageRingBuffer buffer = new TimedMovingAverageRingBuffer(PERIOD, 4);
+        buffer.add(0, 0.0f);
+        assertEquals(0, buffer.size());
+        buffer.add(10, 5.0f);
+        buffer.add(20, 0.0f);
+        assertEquals(2, buffer.size());
+        assertEquals(2.5f, buffer.getAverage(20), DELTA);
+    }
+
+    @SmallTest
+    public void testAverageWithinPeriod() {
+        TimedMovingAverageRingBuffer buffer = new TimedMovingAverageRingBuffer(PERIOD, 8);
+        buffer.add(0, 10.0f);
+        buffer.add(100, 20.0f);
+        buffer.add(200, 30.0f);
+        assertEquals(3, buffer.size());
+        assertEquals(20.0f, buffer.getAverage(200), DELTA);
+    }
+
+    @SmallTest
+    public void testSamplesExpire() {
+        TimedMovingAverageRingBuffer buffer = new TimedMovingAverageRingBuffer(PERIOD, 8);
+        buffer.add(0, 10.0f);
+        buffer.add(500, 20.0f);
+        buffer.add(1000, 30.0f);
+        // The first sample falls out of the window
+        assertEquals(25.0f, buffer.getAverage(1200), DELTA);
+        assertEquals(2, buffer.size());
+    }
+
+    @SmallTest
+    public void testLastSampleNeverExpires() {
+        TimedMovingAverageRingBuffer buffer = new TimedMovingAverageRingBuffer(PERIOD, 8);
+        buffer.add(0, 10.0f);
+        buffer.add(100, 40.0f);
+        assertEquals(40.0f, buffer.getAverage(100 * PERIOD), DELTA);
+        assertEquals(1, buffer.size());
+    }
+
+    @SmallTest
+    public void testFullBufferDropsOldest() {
+        TimedMovingAverageRingBuffer buffer = new TimedMovingAverageRingBuffer(PERIOD, 3);
+        buffer.add(0, 1.0f);
+        buffer.add(1, 2.0f);
+        buffer.add(2, 3.0f);
+        buffer.add(3, 4.0f);
+        assertEquals(3, buffer.size());
+        assertEquals(3.0f, buffer.getAverage(3), DELTA);
+
+        // Wrap around a few more times
+        for (int i = 4; i < 10; i++) {
+            buffer.add(i, i + 1.0f);
+        }
+        assertEquals(9.0f, buffer.getAverage(9), DELTA);
+    }
+
+    @SmallTest
+    public void testClear() {
+        TimedMovingAverageRingBuffer buffer = new TimedMovingAverageRingBuffer(PERIOD, 4);
+        buffer.add(0, 10.0f);
+        buffer.add(1, 20.0f);
+        buffer.clear();
+        assertEquals(0, buffer.size());
+        assertEquals(0.0f, buffer.getAverage(1), DELTA);
+        buffer.add(2, 6.0f);
+        assertEquals(6.0f, buffer.getAverage(2), DELTA);
+    }
+
+    @SmallTest
+    public void testMatchesNaiveAverage() {
+        final int capacity = 32;
+        TimedMovingAverageRingBuffer buffer = new TimedMovingAverageRingBuffer(PERIOD, capacity);
+        final long[] timestamps = new long[5000];
+        final float[] values = new float[timestamps.length];
+        long now = 0;
+        for (int i = 0; i < timestamps.length; i++) {
+            now += 20 + (i * 7919) % 200;
+            timestamps[i] = now;
+            values[i] = 1.0f + (i * 104729) % 50000;
+            buffer.add(now, values[i]);
+
+            // Average of the samples in the window, at most capacity of them,
+            // and at least the latest one
+            double total = values[i];
+            int count = 1;
+            for (int j = i - 1; j >= 0 && count < capacity
+                    && now - timestamps[j] <= PERIOD; j--) {
+                total += values[j];
+                count++;
+            }
+            assertEquals((float) (total / count), buffer.getAverage(now),
+                    (float) (total / count) * 1e-4f);
+        }
+    }
+
+    @LargeTest
+    public void testAddPerformance() {
+        final int iterations = 1000000;
+        TimedMovingAverageRingBuffer buffer = new TimedMovingAverageRingBuffer(PERIOD, 64);
+
+        // Warm up
+        for (int i = 0; i < iterations / 10; i++) {
+            buffer.add(i * 20, i % 1000);
+        }
+        buffer.clear();
+
+        final long start = SystemClock.elapsedRealtimeNanos();
+        float average = 0.0f;
+        for (int i = 0; i < iterations; i++) {
+            buffer.add(i * 20, i % 1000);
+            average += buffer.getAverage(i * 20);
+        }
+        final long elapsed = SystemClock.elapsedRealtimeNanos() - start;
+
+        Log.i(TAG, "add+getAverage: " + (elapsed / iterations) + "ns/op (checksum "
+                + average + ")");
+        assertEquals(PERIOD / 20 + 1, buffer.size());
+    }
+}
@@ -0,0 +1,217 @@
+/*
+ * Copyright (C) 2020 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lineageos.tests.internal.util;
+
+import android.location.Location;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+import android.text.format.DateUtils;
+import android.util.Log;
+import org.lineageos.internal.util.TwilightSchedule;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Replays scripted location updates through the twilight schedule against a
+ * virtual clock, the same way TwilightTracker drives it on a device: every
+ * location update and every fired alarm updates the state, and the alarm is
+ * re-armed whenever the schedule asks for it. Counts the alarms, table
+ * rebuilds and state changes each script causes.
+ */
+public class TwilightScheduleReplayTest extends AndroidTestCase {
+
+    private static final String TAG = TwilightScheduleReplayTest.class.getSimpleName();
+
+    // LOCATION_UPDATE_DISTANCE_METER in TwilightTracker
+    private static final float MIN_DISTANCE_METER = 1000 * 20;
+
+    // 2020-03-01 00:00 UTC
+    private static final long START = 1583020800000L;
+
+    private static final double[] BERLIN = { 52.52, 13.40 };
+    private static final double[] POTSDAM = { 52.40, 13.06 };
+    private static final double[] MADRID = { 40.42, -3.70 };
+    private static final double[] LONGYEARBYEN = { 78.22, 15.65 };
+
+    /** What happened during a replay */
+    private static final class Result {
+        final TwilightSchedule schedule;
+        // times the alarm was armed for, each one is an AlarmManager call
+        final ArrayList<Long> alarms = new ArrayList<Long>();
+        int firedAlarms;
+        // updates which changed the state handed to the listeners
+        int stateChanges;
+        long[] lastState;
+
+        Result(TwilightSchedule schedule) {
+            this.schedule = schedule;
+        }
+
+        @Override
+        public String toString() {
+            return "alarms=" + alarms.size() + " fired=" + firedAlarms
+                    + " stateChanges=" + stateChanges + " rebuilds=" + schedule.getRebuilds();
+        }
+    }
+
+    private static final class Event {
+        final long time;
+        final Location location;
+
+        Event(long time, double[] position) {
+            this.time = time;
+            location = new Location("replay");
+            location.setLatitude(position[0]);
+            location.setLongitude(position[1]);
+            location.setTime(time);
+        }
+    }
+
+    /**
+     * Mirrors TwilightTracker.LocationHandler.updateTwilightState()
+     *
+     * @return the time the alarm is armed for afterwards
+     */
+    private static long updateTwilightState(Result result, long now, Location location,
+            long alarm) {
+        final TwilightSchedule schedule = result.schedule;
+        schedule.update(now, location);
+        final long[] state = new long[] { schedule.isNight() ? 1 : 0,
+                schedule.getYesterdaySunset(), schedule.getTodaySunrise(),
+                schedule.getTodaySunset(), schedule.getTomorrowSunrise() };
+        if (!Arrays.equals(state, result.lastState)) {
+            result.stateChanges++;
+            result.lastState = state;
+        }
+        final long nextUpdate = schedule.scheduleNextUpdate(now);
+        if (nextUpdate == -1) {
+            return alarm;
+        }
+        result.alarms.add(nextUpdate);
+        return nextUpdate;
+    }
+
+    /**
+     * Replay the location updates, firing the alarm whenever it comes due,
+     * then let the clock run on until the given end time.
+     */
+    private static Result replay(long end, Event... events) {
+        final Result result = new Result(new TwilightSchedule(MIN_DISTANCE_METER));
+        Location location = null;
+        long alarm = -1;
+        for (int i = 0; i <= events.length; i++) {
+            final long next = i < events.length ? events[i].time : end;
+            while (alarm != -1 && alarm <= next) {
+                // One-shot, gone once it fired
+                final long now = alarm;
+                alarm = -1;
+                result.firedAlarms++;
+                alarm = updateTwilightState(result, now, location, alarm);
+            }
+            if (i == events.length) {
+                break;
+            }
+            location = events[i].location;
+            alarm = updateTwilightState(result, next, location, alarm);
+        }
+        Log.d(TAG, "replay: " + result);
+        return result;
+    }
+
+    /**
+     * Location updates at the given interval from START, all at one place
+     */
+    private static Event[] stayAt(double[] position, long interval, long duration) {
+        final ArrayList<Event> events = new ArrayList<Event>();
+        for (long t = START; t < START + duration; t += interval) {
+            events.add(new Event(t, position));
+        }
+        return events.toArray(new Event[0]);
+    }
+
+    @SmallTest
+    public void testStationaryArmsOneAlarmPerTransition() {
+        // A location fix every 30 minutes for three days
+        final long duration = 3 * DateUtils.DAY_IN_MILLIS;
+        final Result result = replay(START + duration,
+                stayAt(BERLIN, 30 * DateUtils.MINUTE_IN_MILLIS, duration));
+        assertEquals(result.toString(), 1, result.schedule.getRebuilds());
+        // A sunrise and a sunset each day, the last alarm is still pending
+        assertEquals(result.toString(), 6, result.firedAlarms);
+        assertEquals(result.toString(), result.firedAlarms + 1, result.alarms.size());
+        // Every alarm lands a minute after a transition
+        for (long alarm : result.alarms) {
+            final long transition = alarm - DateUtils.MINUTE_IN_MILLIS;
+            final TwilightSchedule probe = new TwilightSchedule(MIN_DISTANCE_METER);
+            probe.update(transition - 1, new Event(transition - 1, BERLIN).location);
+            assertEquals(transition, probe.getNextTransition(transition - 1));
+        }
+        // Day and night alternate once per transition after the first update,
+        // and the next location update after each solar day rolls over moves
+        // the sunrise and sunset times along
+        assertEquals(result.toString(), result.firedAlarms + 1 + 3, result.stateChanges);
+    }
+
+    @SmallTest
+    public void testSmallMovesKeepAlarm() {
+        // Moving around town, about 10km from the center, within the rebuild distance
+        final double[] suburb = { 52.45, 13.30 };
+        final Result result = replay(START + 12 * DateUtils.HOUR_IN_MILLIS,
+                new Event(START, BERLIN),
+                new Event(START + DateUtils.HOUR_IN_MILLIS, suburb),
+                new Event(START + 2 * DateUtils.HOUR_IN_MILLIS, BERLIN));
+        assertEquals(result.toString(), 1, result.schedule.getRebuilds());
+        // Sunrise, armed once, then fired and armed for sunset
+        assertEquals(result.toString(), 2, result.alarms.size());
+        assertEquals(result.toString(), 1, result.firedAlarms);
+    }
+
+    @SmallTest
+    public void testMovingRebuildsAndRearms() {
+        final Result result = replay(START + 4 * DateUtils.HOUR_IN_MILLIS,
+                new Event(START, BERLIN),
+                new Event(START + DateUtils.HOUR_IN_MILLIS, POTSDAM),
+                new Event(START + 2 * DateUtils.HOUR_IN_MILLIS, MADRID));
+        assertEquals(result.toString(), 3, result.schedule.getRebuilds());
+        // The sunrise moves with every rebuild, so the alarm follows it
+        assertEquals(result.toString(), 3, result.alarms.size());
+        assertEquals(result.toString(), 0, result.firedAlarms);
+    }
+
+    @SmallTest
+    public void testRollsOverWindowOncePerWeek() {
+        final long duration = 14 * DateUtils.DAY_IN_MILLIS;
+        final Result result = replay(START + duration,
+                stayAt(BERLIN, 6 * DateUtils.HOUR_IN_MILLIS, duration));
+        // Rebuilt whenever tomorrow leaves the table, every six days
+        assertEquals(result.toString(), 3, result.schedule.getRebuilds());
+        assertEquals(result.toString(), 28, result.firedAlarms);
+        assertEquals(result.toString(), result.firedAlarms + 1, result.alarms.size());
+    }
+
+    @SmallTest
+    public void testPolarDayChecksTwiceADay() {
+        // Midnight sun, no transition to wait for
+        final long start = START + 100 * DateUtils.DAY_IN_MILLIS;
+        final Result result = replay(start + 2 * DateUtils.DAY_IN_MILLIS,
+                new Event(start, LONGYEARBYEN));
+        assertEquals(result.toString(), 4, result.firedAlarms);
+        assertEquals(result.toString(), result.firedAlarms + 1, result.alarms.size());
+        assertEquals(result.toString(), 0, result.lastState[0]);
+    }
+}
@@ -20,21 +20,26 @@ import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
+import android.os.RemoteException;
+import android.os.SystemClock;
 import android.test.AndroidTestCase;
 import android.test.suitebuilder.annotation.SmallTest;
 import lineageos.app.LineageContextConstants;
 import lineageos.app.Profile;
 import lineageos.app.ProfileManager;
+import lineageos.app.ProfileSummary;
 import lineageos.app.IProfileManager;
 import lineageos.providers.LineageSettings;
 
 import java.util.Arrays;
 import java.util.UUID;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 public class ProfileManagerTest extends AndroidTestCase {
     private static final String TAG = ProfileManagerTest.class.getSimpleName();
     private static final int COUNTDOWN = 1;
+    private static final long BROADCAST_TIMEOUT_MS = 5000;
     private ProfileManager mProfileManager;
 
     @Override
@@ -221,4 +226,164 @@ public class ProfileManagerTest extends AndroidTestCase {
         assertEquals(expectedProfileName, expectedProfile.getName());
         mProfileManager.resetAll();
     }
+
+    @SmallTest
+    public void testProfileExistsIgnoresCase() {
+        ensureProfilesEnabled();
+        Profile expectedProfile = new Profile("Case Profile");
+        mProfileManager.addProfile(expectedProfile);
+        assertTrue(mProfileManager.profileExists("case profile"));
+        assertTrue(mProfileManager.profileExists("CASE PROFILE"));
+        mProfileManager.resetAll();
+    }
+
+    @SmallTest
+    public void testUpdateProfileRenamesLookups() {
+        ensureProfilesEnabled();
+        String originalProfileName = "PROFILE 1";
+        String expectedProfileName = "PROFILE 2";
+        Profile expectedProfile = new Profile(originalProfileName);
+        mProfileManager.addProfile(expectedProfile);
+        expectedProfile.setName(expectedProfileName);
+        mProfileManager.updateProfile(expectedProfile);
+        assertFalse(mProfileManager.profileExists(originalProfileName));
+        assertTrue(mProfileManager.profileExists(expectedProfileName));
+        mProfileManager.resetAll();
+    }
+
+    @SmallTest
+    public void testRemoveProfileClearsLookups() {
+        ensureProfilesEnabled();
+        String expectedProfileName = "PROFILE 1";
+        UUID secondaryUuid = UUID.randomUUID();
+        Profile expectedProfile = new Profile(expectedProfileName);
+        expectedProfile.addSecondaryUuid(secondaryUuid);
+        mProfileManager.addProfile(expectedProfile);
+        assertTrue(mProfileManager.profileExists(expectedProfileName));
+        assertEquals(expectedProfile.getUuid(),
+                mProfileManager.getProfile(secondaryUuid).getUuid());
+
+        mProfileManager.removeProfile(expectedProfile);
+        assertFalse(mProfileManager.profileExists(expectedProfileName));
+        assertFalse(mProfileManager.profileExists(expectedProfile.getUuid()));
+        assertNull(mProfileManager.getProfile(secondaryUuid));
+        mProfileManager.resetAll();
+    }
+
+    @SmallTest
+    public void testGetProfileSummaries() {
+        ensureProfilesEnabled();
+        Profile expectedProfile = new Profile("PROFILE 1");
+        mProfileManager.addProfile(expectedProfile);
+
+        Profile[] profiles = mProfileManager.getProfiles();
+        ProfileSummary[] summaries = mProfileManager.getProfileSummaries();
+        assertEquals(profiles.length, summaries.length);
+        for (int i = 0; i < summaries.length; i++) {
+            assertEquals(profiles[i].getUuid(), summaries[i].getUuid());
+            assertEquals(profiles[i].getName(), summaries[i].getName());
+            assertEquals(profiles[i].getProfileType(), summaries[i].getProfileType());
+            assertEquals(mProfileManager.getActiveProfile().getUuid()
+                    .equals(summaries[i].getUuid()), summaries[i].isActive());
+        }
+        mProfileManager.resetAll();
+    }
+
+    private Profile findProfile(Profile[] profiles, UUID uuid) {
+        for (Profile profile : profiles) {
+            if (profile.getUuid().equals(uuid)) {
+                return profile;
+            }
+        }
+        return null;
+    }
+
+    @SmallTest
+    public void testGetActiveProfileReturnsCopy() {
+        ensureProfilesEnabled();
+        Profile profile = new Profile("CACHED ACTIVE PROFILE");
+        mProfileManager.addProfile(profile);
+        mProfileManager.setActiveProfile(profile.getUuid());
+
+        Profile first = mProfileManager.getActiveProfile();
+        first.setName("MUTATED");
+        Profile second = mProfileManager.getActiveProfile();
+        assertNotSame(first, second);
+        assertEquals(profile.getName(), second.getName());
+        mProfileManager.resetAll();
+    }
+
+    @SmallTest
+    public void testGetProfilesReturnsCopies() {
+        ensureProfilesEnabled();
+        Profile profile = new Profile("CACHED PROFILE");
+        mProfileManager.addProfile(profile);
+
+        Profile first = findProfile(mProfileManager.getProfiles(), profile.getUuid());
+        assertNotNull(first);
+        first.setName("MUTATED");
+        Profile second = findProfile(mProfileManager.getProfiles(), profile.getUuid());
+        assertNotSame(first, second);
+        assertEquals(profile.getName(), second.getName());
+        mProfileManager.resetAll();
+    }
+
+    @SmallTest
+    public void testUpdateProfileInvalidatesCache() {
+        ensureProfilesEnabled();
+        Profile profile = new Profile("PROFILE 1");
+        mProfileManager.addProfile(profile);
+        // Populate the cache
+        assertNotNull(findProfile(mProfileManager.getProfiles(), profile.getUuid()));
+
+        profile.setName("PROFILE 2");
+        mProfileManager.updateProfile(profile);
+        assertEquals("PROFILE 2",
+                findProfile(mProfileManager.getProfiles(), profile.getUuid()).getName());
+        mProfileManager.resetAll();
+    }
+
+    @SmallTest
+    public void testGenerationBroadcastInvalidatesCache() throws RemoteException {
+        ensureProfilesEnabled();
+        Profile profile = new Profile("PROFILE 1");
+        mProfileManager.addProfile(profile);
+        // Populate the cache
+        assertNotNull(findProfile(mProfileManager.getProfiles(), profile.getUuid()));
+
+        final CountDownLatch signal = new CountDownLatch(COUNTDOWN);
+        BroadcastReceiver intentReceiver = new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                if (intent.getIntExtra(ProfileManager.EXTRA_PROFILES_GENERATION, -1) >= 0) {
+                    signal.countDown();
+                }
+            }
+        };
+        mContext.registerReceiver(intentReceiver,
+                new IntentFilter(ProfileManager.INTENT_ACTION_PROFILES_CHANGED));
+
+        // Update behind the manager's back, only the broadcast can invalidate its cache
+        profile.setName("PROFILE 2");
+        ProfileManager.getService().updateProfile(profile);
+        try {
+            assertTrue(signal.await(BROADCAST_TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        } catch (InterruptedException e) {
+            throw new AssertionError(e);
+        }
+        mContext.unregisterReceiver(intentReceiver);
+
+        // The manager's own receiver may run just after ours
+        final long deadline = SystemClock.uptimeMillis() + BROADCAST_TIMEOUT_MS;
+        String name = null;
+        while (SystemClock.uptimeMillis() < deadline) {
+            name = findProfile(mProfileManager.getProfiles(), profile.getUuid()).getName();
+            if ("PROFILE 2".equals(name)) {
+                break;
+            }
+            SystemClock.sleep(50);
+        }
+        assertEquals("PROFILE 2", name);
+        mProfileManager.resetAll();
+    }
 }
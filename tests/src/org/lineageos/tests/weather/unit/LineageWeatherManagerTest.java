@@ -235,6 +235,39 @@ public class LineageWeatherManagerTest extends AndroidTestCase {
         }
     }
 
+    @SmallTest
+    public void testRequestWeatherUpdateWithExecutor() {
+        final Location location = new Location("test_location_provider");
+        final Thread callingThread = Thread.currentThread();
+        final boolean[] called = {false};
+        // The mocked service completes synchronously, so a direct executor must run the
+        // listener before requestWeatherUpdate returns, on this very thread
+        mWeatherManager.requestWeatherUpdate(location, Runnable::run,
+                new WeatherUpdateRequestListener() {
+            @Override
+            public void onWeatherRequestCompleted(int status, WeatherInfo weatherInfo) {
+                assertEquals(callingThread, Thread.currentThread());
+                assertEquals(LineageWeatherManager.RequestStatus.COMPLETED, status);
+                called[0] = true;
+            }
+        });
+        assertTrue(called[0]);
+    }
+
+    @SmallTest
+    public void testLookupCityWithExecutor() {
+        final boolean[] called = {false};
+        mWeatherManager.lookupCity(CITY_NAME, Runnable::run, new LookupCityRequestListener() {
+            @Override
+            public void onLookupCityRequestCompleted(int status,
+                    List<WeatherLocation> locations) {
+                assertEquals(LineageWeatherManager.RequestStatus.COMPLETED, status);
+                called[0] = true;
+            }
+        });
+        assertTrue(called[0]);
+    }
+
     @SmallTest
     public void testCancelRequest() {
         mWeatherManager.cancelRequest(REQUEST_ID);
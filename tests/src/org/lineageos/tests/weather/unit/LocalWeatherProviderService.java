@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2020 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lineageos.tests.weather.unit;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
+import lineageos.providers.WeatherContract;
+import lineageos.weather.RequestInfo;
+import lineageos.weather.WeatherInfo;
+import lineageos.weatherservice.ServiceRequest;
+import lineageos.weatherservice.ServiceRequestResult;
+import lineageos.weatherservice.WeatherProviderService;
+
+import java.util.Random;
+
+/**
+ * A weather provider service answering from made up data, without network access. How long it
+ * takes, how often it fails and how many requests per second it can honor are configurable, so
+ * it can stand in for a real provider in load tests.
+ */
+public class LocalWeatherProviderService extends WeatherProviderService {
+
+    private static volatile long sLatencyMs = 50;
+    private static volatile float sFailureRate = 0f;
+    private static volatile int sMaxRequestsPerSecond = 0;
+
+    private final Random mRandom = new Random();
+    private HandlerThread mThread;
+    private Handler mHandler;
+    private long mNextSlot;
+
+    /**
+     * Configure how this provider behaves for the requests submitted from now on
+     * @param latencyMs Time it takes to honor a request
+     * @param failureRate Fraction of the requests, between 0 and 1, marked as failed
+     * @param maxRequestsPerSecond Requests honored per second at most, 0 for no limit
+     */
+    public static void configure(long latencyMs, float failureRate, int maxRequestsPerSecond) {
+        sLatencyMs = latencyMs;
+        sFailureRate = failureRate;
+        sMaxRequestsPerSecond = maxRequestsPerSecond;
+    }
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        mThread = new HandlerThread(LocalWeatherProviderService.class.getSimpleName());
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+    }
+
+    @Override
+    public void onDestroy() {
+        mThread.quit();
+        super.onDestroy();
+    }
+
+    @Override
+    protected void onRequestSubmitted(final ServiceRequest request) {
+        long when = SystemClock.uptimeMillis() + sLatencyMs;
+        final int maxRequestsPerSecond = sMaxRequestsPerSecond;
+        if (maxRequestsPerSecond > 0) {
+            // Requests queue up behind each other once the throughput is exceeded
+            when = Math.max(when, mNextSlot);
+            mNextSlot = when + 1000 / maxRequestsPerSecond;
+        }
+        mHandler.postAtTime(new Runnable() {
+            @Override
+            public void run() {
+                processRequest(request);
+            }
+        }, request, when);
+    }
+
+    @Override
+    protected void onRequestCancelled(ServiceRequest request) {
+        mHandler.removeCallbacksAndMessages(request);
+    }
+
+    private void processRequest(ServiceRequest request) {
+        final RequestInfo info = request.getRequestInfo();
+        if (mRandom.nextFloat() < sFailureRate) {
+            request.fail();
+            return;
+        }
+        if (info.getRequestType() == RequestInfo.TYPE_LOOKUP_CITY_NAME_REQ) {
+            request.fail();
+            return;
+        }
+        final String city = info.getWeatherLocation() != null
+                ? info.getWeatherLocation().getCity() : "Local";
+        final WeatherInfo weatherInfo = new WeatherInfo.Builder(city,
+                mRandom.nextInt(40), info.getTemperatureUnit())
+                .setWeatherCondition(WeatherContract.WeatherColumns.WeatherCode.SUNNY)
+                .setTimestamp(System.currentTimeMillis())
+                .build();
+        request.complete(new ServiceRequestResult.Builder(weatherInfo).build());
+    }
+}
@@ -131,6 +131,63 @@ public class WeatherProviderServiceTest extends ThreadServiceTestCase<MockWeathe
         });
     }
 
+    public void testWeatherUpdateRequestBatch() throws Exception {
+        IBinder binder = bindService((ServiceRunnable) null);
+        assertNotNull(binder);
+
+        final IWeatherProviderService provider = IWeatherProviderService.Stub.asInterface(binder);
+        assertNotNull(provider);
+
+        List<RequestInfo> requests = new ArrayList<>();
+        requests.add(buildMockdRequestInfo(RequestInfo.TYPE_WEATHER_BY_WEATHER_LOCATION_REQ));
+        requests.add(buildMockdRequestInfo(RequestInfo.TYPE_WEATHER_BY_GEO_LOCATION_REQ));
+        provider.processWeatherUpdateRequests(requests);
+        runOnServiceThread(new Runnable() {
+            @Override
+            public void run() {
+                // The mock doesn't override onRequestsSubmitted, each request must be
+                // handed over individually
+                Mockito.verify(getService().getCallTracker(), Mockito.timeout(TIMEOUT).times(2))
+                        .onRequestSubmitted(Mockito.any(ServiceRequest.class));
+            }
+        });
+    }
+
+    public void testCancelRequest() throws Exception {
+        IBinder binder = bindService((ServiceRunnable) null);
+        assertNotNull(binder);
+
+        final IWeatherProviderService provider = IWeatherProviderService.Stub.asInterface(binder);
+        assertNotNull(provider);
+
+        final RequestInfo requestInfo
+                = buildMockdRequestInfo(RequestInfo.TYPE_WEATHER_BY_WEATHER_LOCATION_REQ);
+        provider.processWeatherUpdateRequest(requestInfo);
+        runOnServiceThread(new Runnable() {
+            @Override
+            public void run() {
+                Mockito.verify(getService().getCallTracker(), Mockito.timeout(TIMEOUT).times(1))
+                        .onRequestSubmitted(Mockito.any(ServiceRequest.class));
+            }
+        });
+
+        provider.cancelRequest(requestInfo.hashCode());
+        // Cancelling twice must not notify the service twice
+        provider.cancelRequest(requestInfo.hashCode());
+        runOnServiceThread(new Runnable() {
+            @Override
+            public void run() {
+                ArgumentCaptor<ServiceRequest> params
+                        = ArgumentCaptor.forClass(ServiceRequest.class);
+
+                Mockito.verify(getService().getCallTracker(), Mockito.timeout(TIMEOUT).times(1))
+                        .onRequestCancelled(params.capture());
+
+                assertEquals(requestInfo, params.getValue().getRequestInfo());
+            }
+        });
+    }
+
     public void testServiceRequestResult() throws Exception {
         final CountDownLatch latch = new CountDownLatch(3);
         IBinder binder = bindService((ServiceRunnable) null);
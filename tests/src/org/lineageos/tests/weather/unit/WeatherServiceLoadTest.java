@@ -0,0 +1,244 @@
+/*
+ * Copyright (C) 2020 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lineageos.tests.weather.unit;
+
+import android.content.ComponentName;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+import android.util.SparseIntArray;
+import lineageos.providers.LineageSettings;
+import lineageos.weather.LineageWeatherManager;
+import lineageos.weather.LineageWeatherManager.WeatherServiceProviderChangeListener;
+import lineageos.weather.LineageWeatherManager.WeatherUpdateRequestListener;
+import lineageos.weather.WeatherInfo;
+import lineageos.weather.WeatherLocation;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Drives the weather service with many concurrent requests, cancellations and provider rebinds
+ * against {@link LocalWeatherProviderService}, and reports how long requests took to complete.
+ * Everything runs on the device, no network access is needed. All requests come from this app,
+ * so the per-app request limits are lifted through
+ * {@link LineageSettings.Global#WEATHER_REQUEST_LIMITS} for the duration of the test, and every
+ * request has to make it through the cache, coalescing and the provider.
+ */
+public class WeatherServiceLoadTest extends AndroidTestCase {
+
+    private static final String TAG = WeatherServiceLoadTest.class.getSimpleName();
+
+    private static final int THREADS = 8;
+    private static final int REQUESTS_PER_THREAD = 250;
+    private static final int LOCATIONS = 50;
+    // Every Nth request is cancelled right after being submitted
+    private static final int CANCEL_EVERY = 10;
+    // The provider is rebound after this many requests were submitted
+    private static final int REBIND_AFTER = THREADS * REQUESTS_PER_THREAD / 2;
+    private static final long TIMEOUT_MS = 60 * 1000;
+    private static final long PROVIDER_TIMEOUT_MS = 10 * 1000;
+    // Even if every request reached the provider, it honors them all in this time
+    private static final long MAX_P99_LATENCY_MS = 20 * 1000;
+    private static final int PROVIDER_REQUESTS_PER_SECOND = 200;
+
+    // Enough for every request of the test, without ever rate limiting
+    private static final String UNLIMITED_REQUESTS =
+            "burst=" + (THREADS * REQUESTS_PER_THREAD) + ",refill_interval=1,queue_size="
+            + (THREADS * REQUESTS_PER_THREAD);
+
+    // Deliver callbacks on the binder thread, the main thread would skew the latencies
+    private static final Executor DIRECT_EXECUTOR = Runnable::run;
+
+    private LineageWeatherManager mWeatherManager;
+    private String mPreviousProvider;
+    private String mPreviousRequestLimits;
+    private String mLocalProvider;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mWeatherManager = LineageWeatherManager.getInstance(getContext());
+        mPreviousProvider = LineageSettings.Secure.getString(getContext().getContentResolver(),
+                LineageSettings.Secure.WEATHER_PROVIDER_SERVICE);
+        mPreviousRequestLimits = LineageSettings.Global.getString(
+                getContext().getContentResolver(), LineageSettings.Global.WEATHER_REQUEST_LIMITS);
+        mLocalProvider = new ComponentName(getContext(), LocalWeatherProviderService.class)
+                .flattenToString();
+        LocalWeatherProviderService.configure(50, 0.05f, PROVIDER_REQUESTS_PER_SECOND);
+        // The service applies settings changes in order, so the limits are lifted by the time
+        // the provider change is reported
+        LineageSettings.Global.putString(getContext().getContentResolver(),
+                LineageSettings.Global.WEATHER_REQUEST_LIMITS, UNLIMITED_REQUESTS);
+        setProvider(mLocalProvider);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        setProvider(mPreviousProvider);
+        LineageSettings.Global.putString(getContext().getContentResolver(),
+                LineageSettings.Global.WEATHER_REQUEST_LIMITS, mPreviousRequestLimits);
+        super.tearDown();
+    }
+
+    private void setProvider(String provider) throws InterruptedException {
+        final CountDownLatch changed = new CountDownLatch(1);
+        final WeatherServiceProviderChangeListener listener =
+                new WeatherServiceProviderChangeListener() {
+            @Override
+            public void onWeatherServiceProviderChanged(String providerLabel) {
+                changed.countDown();
+            }
+        };
+        mWeatherManager.registerWeatherServiceProviderChangeListener(listener);
+        LineageSettings.Secure.putString(getContext().getContentResolver(),
+                LineageSettings.Secure.WEATHER_PROVIDER_SERVICE, provider);
+        if (provider != null) {
+            // Only reported once the new provider is connected
+            changed.await(PROVIDER_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        }
+        mWeatherManager.unregisterWeatherServiceProviderChangeListener(listener);
+    }
+
+    @LargeTest
+    public void testConcurrentRequests() throws Exception {
+        final int total = THREADS * REQUESTS_PER_THREAD;
+        // Written from binder threads, read here once the requests completed
+        final AtomicIntegerArray callbacks = new AtomicIntegerArray(total);
+        final AtomicLongArray latencies = new AtomicLongArray(total);
+        final AtomicIntegerArray statuses = new AtomicIntegerArray(total);
+        final boolean[] cancelled = new boolean[total];
+        int cancelledCount = 0;
+        for (int i = 0; i < total; i++) {
+            cancelled[i] = i % CANCEL_EVERY == 0;
+            if (cancelled[i]) cancelledCount++;
+        }
+        // Cancelled requests may or may not complete, don't wait for them
+        final CountDownLatch completed = new CountDownLatch(total - cancelledCount);
+        final AtomicInteger submitted = new AtomicInteger();
+        final AtomicInteger duplicateCallbacks = new AtomicInteger();
+        final CountDownLatch rebind = new CountDownLatch(1);
+
+        Thread[] threads = new Thread[THREADS];
+        for (int t = 0; t < THREADS; t++) {
+            final int thread = t;
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < REQUESTS_PER_THREAD; i++) {
+                        final int index = thread * REQUESTS_PER_THREAD + i;
+                        final WeatherLocation location = new WeatherLocation.Builder(
+                                "City " + (index % LOCATIONS)).build();
+                        final long start = SystemClock.elapsedRealtimeNanos();
+                        final int requestId = mWeatherManager.requestWeatherUpdate(location,
+                                DIRECT_EXECUTOR, new WeatherUpdateRequestListener() {
+                            @Override
+                            public void onWeatherRequestCompleted(int status,
+                                    WeatherInfo weatherInfo) {
+                                if (callbacks.getAndIncrement(index) != 0) {
+                                    duplicateCallbacks.incrementAndGet();
+                                    return;
+                                }
+                                statuses.set(index, status);
+                                latencies.set(index, SystemClock.elapsedRealtimeNanos() - start);
+                                if (!cancelled[index]) {
+                                    completed.countDown();
+                                }
+                            }
+                        });
+                        if (cancelled[index]) {
+                            // It may well have completed already
+                            mWeatherManager.cancelRequest(requestId);
+                        }
+                        if (submitted.incrementAndGet() == REBIND_AFTER) {
+                            rebind.countDown();
+                        }
+                    }
+                }
+            });
+            threads[t].start();
+        }
+
+        rebind.await();
+        // Pending requests must be failed, not lost, when the provider goes away
+        setProvider(null);
+        setProvider(mLocalProvider);
+
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        final boolean allCompleted = completed.await(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+
+        final SparseIntArray statusCounts = new SparseIntArray();
+        final long[] done = new long[total];
+        int count = 0;
+        for (int i = 0; i < total; i++) {
+            // Set last, a late cancelled request may still be recording its status
+            final long latency = latencies.get(i);
+            if (latency == 0) {
+                continue;
+            }
+            done[count++] = latency;
+            final int status = statuses.get(i);
+            statusCounts.put(status, statusCounts.get(status) + 1);
+        }
+        Arrays.sort(done, 0, count);
+        final int dropped = countDropped(callbacks, cancelled);
+
+        Log.i(TAG, "Requests: " + total + ", cancelled: " + cancelledCount
+                + ", dropped: " + dropped);
+        if (count > 0) {
+            Log.i(TAG, "Completion latency p50: " + percentileMs(done, count, 50)
+                    + "ms, p99: " + percentileMs(done, count, 99) + "ms");
+        }
+        for (int i = 0; i < statusCounts.size(); i++) {
+            Log.i(TAG, "Status " + statusCounts.keyAt(i) + ": " + statusCounts.valueAt(i));
+        }
+
+        assertTrue("Requests never completed: " + dropped, allCompleted);
+        assertEquals(0, dropped);
+        assertEquals(0, duplicateCallbacks.get());
+        // With the limits lifted, nothing may be turned away by admission control
+        assertEquals(0, statusCounts.get(LineageWeatherManager.RequestStatus.RATE_LIMITED));
+        assertEquals(0, statusCounts.get(LineageWeatherManager.RequestStatus.QUEUE_FULL));
+        // The rebind fails whatever is in flight or submitted meanwhile, but not everything
+        assertTrue(statusCounts.get(LineageWeatherManager.RequestStatus.COMPLETED) > 0);
+        assertTrue("p99 latency " + percentileMs(done, count, 99) + "ms",
+                percentileMs(done, count, 99) < MAX_P99_LATENCY_MS);
+    }
+
+    private static int countDropped(AtomicIntegerArray callbacks, boolean[] cancelled) {
+        int dropped = 0;
+        for (int i = 0; i < cancelled.length; i++) {
+            if (!cancelled[i] && callbacks.get(i) == 0) {
+                dropped++;
+            }
+        }
+        return dropped;
+    }
+
+    private static double percentileMs(long[] sorted, int count, int percentile) {
+        final int index = Math.min(count - 1, (int) Math.ceil(percentile / 100.0 * count) - 1);
+        return sorted[Math.max(0, index)] / 1000000.0;
+    }
+}